@@ -6,10 +6,8 @@ import query.QuerySolver;
 import query.TRECQuery;
 
 import java.io.IOException;
-import java.util.ArrayList;
-import java.util.List;
-import java.util.Map;
-import java.util.Set;
+import java.util.*;
+import java.util.concurrent.ExecutorService;
 
 /**
  * @author Dan Graur 4/10/2018
@@ -45,34 +43,74 @@ public class Evaluator {
 
 
         for (TRECQuery trecQuery : groundTruths.keySet()) {
-            Set<String> optimalResults = groundTruths.get(trecQuery);
-            QualityStats qs = new QualityStats(optimalResults.size(), 1L);
+            List<String> results = Collections.emptyList();
 
             try {
-                List<String> results = solver.answerQuery(trecQuery.getPlainQuery(), 5);
-
-                for (int i = 0; i < results.size(); ++i)
-                        qs.addResult(i + 1, optimalResults.contains(results.get(i)), 1L);
-                
+                results = solver.answerQuery(trecQuery.getPlainQuery(), 5);
             } catch (IOException e) {
                 e.printStackTrace();
             }
 
-            individualResults.add(qs);
+            rPrecAvg += addQualityStats(groundTruths.get(trecQuery), results, individualResults);
+        }
 
-            /* Precision @ optimalResults.size() is in fact R-Prec */
-            int maxGoodRes = optimalResults.size() == 0 ? 1 : (optimalResults.size() > 20 ? 20 : optimalResults.size());
-            rPrecAvg += qs.getPrecisionAt(maxGoodRes);
+        int resSize = individualResults.size();
 
-            if (verbose)
-                System.out.println("\t>>> Average Precision: " + qs.getAvp() + "\n\t>>> R-Prec: " + qs.getPrecisionAt(maxGoodRes) + "\n\t>>> MRR: " + qs.getMRR() + '\n');
-        }
+        return new Pair<>(QualityStats.average(individualResults.toArray(new QualityStats[resSize])), rPrecAvg / resSize);
+    }
+
+    /**
+     * Run the evaluation function on the provided data, answering the queries concurrently
+     *
+     * @param executor the executor on which the queries are answered
+     * @return a QualityStats object, which aggregates the evaluation results
+     * @throws IOException if the batch of queries could not be answered
+     */
+    public Pair<QualityStats, Double> evaluate(ExecutorService executor) throws IOException {
+        double rPrecAvg = 0.0;
+        List<QualityStats> individualResults = new ArrayList<>();
+
+        /* The ground truths are looked up by query id, as the batch results are keyed by it */
+        Map<String, Set<String>> truthsById = new HashMap<>();
+
+        for (Map.Entry<TRECQuery, Set<String>> entry : groundTruths.entrySet())
+            truthsById.put(entry.getKey().getQueryId(), entry.getValue());
+
+        SortedMap<String, List<String>> batchResults = solver.answerQueries(groundTruths.keySet(), 5, executor);
+
+        for (Map.Entry<String, List<String>> entry : batchResults.entrySet())
+            rPrecAvg += addQualityStats(truthsById.get(entry.getKey()), entry.getValue(), individualResults);
 
         int resSize = individualResults.size();
 
         return new Pair<>(QualityStats.average(individualResults.toArray(new QualityStats[resSize])), rPrecAvg / resSize);
     }
 
+    /**
+     * Compute the quality stats of a single query, and add them to the list of individual results
+     *
+     * @param optimalResults the relevant paragraph ids of the query
+     * @param results the retrieved paragraph ids, in rank order
+     * @param individualResults the list to which the stats are added
+     * @return the R-Prec of the query
+     */
+    private double addQualityStats(Set<String> optimalResults, List<String> results, List<QualityStats> individualResults) {
+        QualityStats qs = new QualityStats(optimalResults.size(), 1L);
+
+        for (int i = 0; i < results.size(); ++i)
+            qs.addResult(i + 1, optimalResults.contains(results.get(i)), 1L);
+
+        individualResults.add(qs);
+
+        /* Precision @ optimalResults.size() is in fact R-Prec */
+        int maxGoodRes = optimalResults.size() == 0 ? 1 : (optimalResults.size() > 20 ? 20 : optimalResults.size());
+
+        if (verbose)
+            System.out.println("\t>>> Average Precision: " + qs.getAvp() + "\n\t>>> R-Prec: " + qs.getPrecisionAt(maxGoodRes) + "\n\t>>> MRR: " + qs.getMRR() + '\n');
+
+        return qs.getPrecisionAt(maxGoodRes);
+    }
+
     public boolean isVerbose() {
         return verbose;
     }
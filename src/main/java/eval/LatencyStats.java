@@ -0,0 +1,85 @@
+package eval;
+
+import java.util.Arrays;
+
+/**
+ * Records query latencies, and reports their percentiles. Recording is thread safe.
+ */
+public class LatencyStats {
+    /**
+     * The recorded latencies, in nanoseconds
+     */
+    private long[] latencies;
+    /**
+     * The number of recorded latencies
+     */
+    private int count;
+
+    public LatencyStats() {
+        latencies = new long[1024];
+    }
+
+    /**
+     * Record a latency
+     *
+     * @param nanos the latency in nanoseconds
+     */
+    public synchronized void record(long nanos) {
+        if (count == latencies.length)
+            latencies = Arrays.copyOf(latencies, count * 2);
+
+        latencies[count++] = nanos;
+    }
+
+    public synchronized int getCount() {
+        return count;
+    }
+
+    /**
+     * Get a percentile of the recorded latencies (nearest rank)
+     *
+     * @param percentile the percentile, in [0, 100]
+     * @return the latency in milliseconds; 0 if nothing was recorded
+     */
+    public synchronized double getPercentile(double percentile) {
+        if (count == 0)
+            return 0.0;
+
+        long[] sorted = Arrays.copyOf(latencies, count);
+        Arrays.sort(sorted);
+
+        int rank = (int) Math.ceil(percentile / 100.0 * count);
+
+        return sorted[Math.min(Math.max(rank, 1), count) - 1] / 1_000_000.0;
+    }
+
+    /**
+     * @return the mean latency in milliseconds; 0 if nothing was recorded
+     */
+    public synchronized double getMean() {
+        if (count == 0)
+            return 0.0;
+
+        double sum = 0.0;
+
+        for (int i = 0; i < count; ++i)
+            sum += latencies[i];
+
+        return sum / count / 1_000_000.0;
+    }
+
+    /**
+     * Forget all the recorded latencies
+     */
+    public synchronized void clear() {
+        count = 0;
+    }
+
+    @Override
+    public String toString() {
+        return "queries: " + getCount() +
+                ", mean: " + getMean() + " ms" +
+                ", p50: " + getPercentile(50) + " ms" +
+                ", p99: " + getPercentile(99) + " ms";
+    }
+}
@@ -0,0 +1,224 @@
+package eval;
+
+import query.SearchHit;
+
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * Streams the results of a batch run into a standard TREC run file, as each query finishes:
+ *
+ *     queryId Q0 paraId rank score tag
+ *
+ * The lines of a query are formatted by the thread which answered it, and handed to a single writer thread through a
+ * bounded queue; hence, the memory use is bounded by the queue capacity and the buffer size, no matter how many queries
+ * are run. If the writer falls behind, the producers block until the queue drains.
+ *
+ * The queries appear in the file in completion order; each query's lines are contiguous and in rank order.
+ */
+public class RunFileWriter implements Closeable {
+    /**
+     * The default size of the output buffer, in chars
+     */
+    public static final int DEFAULT_BUFFER_SIZE = 1 << 20;
+    /**
+     * The default number of queries whose lines may be waiting for the writer thread
+     */
+    public static final int DEFAULT_QUEUE_CAPACITY = 256;
+
+    /**
+     * Marks the end of the stream for the writer thread
+     */
+    private static final String END_OF_RUN = new String("");
+
+    /**
+     * The run tag, last column of every line
+     */
+    private final String tag;
+    /**
+     * The formatted lines of the finished queries, one element per query
+     */
+    private final BlockingQueue<String> pending;
+    /**
+     * The (buffered) run file
+     */
+    private final Writer out;
+    /**
+     * Drains the queue into the file
+     */
+    private final Thread writerThread;
+    /**
+     * The first failure of the writer thread, if any
+     */
+    private volatile IOException failure;
+    /**
+     * Counters of the written run
+     */
+    private long queries;
+    private long lines;
+    private boolean closed;
+
+    public RunFileWriter(Path runFile, String tag, int bufferSize, int queueCapacity) throws IOException {
+        this.tag = tag;
+        this.pending = new ArrayBlockingQueue<>(queueCapacity);
+        this.out = new BufferedWriter(new OutputStreamWriter(Files.newOutputStream(runFile), StandardCharsets.UTF_8), bufferSize);
+
+        this.writerThread = new Thread(this::drain, "run-file-writer");
+        this.writerThread.setDaemon(true);
+        this.writerThread.start();
+    }
+
+    public RunFileWriter(Path runFile, String tag) throws IOException {
+        this(runFile, tag, DEFAULT_BUFFER_SIZE, DEFAULT_QUEUE_CAPACITY);
+    }
+
+    /**
+     * Append the lines of a query, in TREC run format
+     *
+     * @param builder the builder to which the lines are appended
+     * @param queryId the query id
+     * @param hits the hits of the query, in rank order
+     * @param tag the run tag
+     */
+    public static void appendRunLines(StringBuilder builder, String queryId, List<SearchHit> hits, String tag) {
+        for (int i = 0; i < hits.size(); ++i)
+            builder.append(queryId).append(" Q0 ").append(hits.get(i).getParaId()).append(' ')
+                    .append(i + 1).append(' ').append(hits.get(i).getScore()).append(' ').append(tag).append('\n');
+    }
+
+    /**
+     * Queue the results of a finished query for writing; safe to call from multiple threads. The paragraph ids are
+     * resolved by the calling thread.
+     *
+     * @param queryId the query id
+     * @param hits the hits of the query, in rank order
+     * @throws IOException if the writer thread has failed, or if interrupted while waiting for room in the queue
+     */
+    public void write(String queryId, List<SearchHit> hits) throws IOException {
+        checkFailure();
+
+        StringBuilder builder = new StringBuilder(hits.size() * 64);
+        appendRunLines(builder, queryId, hits, tag);
+
+        try {
+            pending.put(builder.toString());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while queueing the results of query " + queryId, e);
+        }
+    }
+
+    /**
+     * @return the number of queries written so far
+     */
+    public synchronized long getQueries() {
+        return queries;
+    }
+
+    /**
+     * @return the number of lines written so far
+     */
+    public synchronized long getLines() {
+        return lines;
+    }
+
+    /**
+     * Wait for the queued queries to be written, and close the file
+     *
+     * @throws IOException if any of the writes failed
+     */
+    @Override
+    public void close() throws IOException {
+        synchronized (this) {
+            if (closed)
+                return;
+
+            closed = true;
+        }
+
+        boolean interrupted = false;
+
+        try {
+            pending.put(END_OF_RUN);
+        } catch (InterruptedException e) {
+            /* The writer thread cannot be told about the end of the run, hence it is stopped instead */
+            interrupted = true;
+            writerThread.interrupt();
+        }
+
+        /* The file is only closed once the writer thread is done with it */
+        while (writerThread.isAlive()) {
+            try {
+                writerThread.join();
+            } catch (InterruptedException e) {
+                interrupted = true;
+                writerThread.interrupt();
+            }
+        }
+
+        out.close();
+
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while closing the run file");
+        }
+
+        checkFailure();
+    }
+
+    private void drain() {
+        try {
+            String block;
+
+            while ((block = pending.take()) != END_OF_RUN) {
+                if (failure != null)
+                    continue;
+
+                try {
+                    out.write(block);
+                } catch (IOException e) {
+                    /* Keep draining, such that the producers do not block forever */
+                    failure = e;
+                }
+
+                synchronized (this) {
+                    ++queries;
+
+                    for (int i = 0; i < block.length(); ++i)
+                        if (block.charAt(i) == '\n')
+                            ++lines;
+                }
+            }
+
+            out.flush();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (IOException e) {
+            if (failure == null)
+                failure = e;
+        }
+    }
+
+    private void checkFailure() throws IOException {
+        if (failure != null)
+            throw new IOException("Unable to write the run file", failure);
+    }
+
+    @Override
+    public String toString() {
+        return "RunFileWriter{" +
+                "tag='" + tag + '\'' +
+                ", queries=" + getQueries() +
+                ", lines=" + getLines() +
+                '}';
+    }
+}
@@ -1,8 +1,6 @@
 package query;
 
 import org.apache.lucene.analysis.Analyzer;
-import org.apache.lucene.analysis.TokenStream;
-import org.apache.lucene.analysis.tokenattributes.CharTermAttribute;
 import org.apache.lucene.index.Term;
 import org.apache.lucene.search.BooleanClause;
 import org.apache.lucene.search.BooleanQuery;
@@ -10,6 +8,7 @@ import org.apache.lucene.search.Query;
 import org.apache.lucene.search.TermQuery;
 
 import java.io.IOException;
+import java.util.List;
 
 /**
  * @author Dan Graur 4/7/2018
@@ -30,15 +29,7 @@ final public class BinaryQueryBuilder extends QueryBuilder {
 
     @Override
     public Query buildQuery(String targetField, String queryString) throws IOException {
-        TokenStream stream = analyzer.tokenStream(targetField, queryString);
-        stream.reset();
-        tokens.clear();
-
-        while(stream.incrementToken())
-            tokens.add(stream.getAttribute(CharTermAttribute.class).toString());
-
-        stream.end();
-        stream.close();
+        List<String> tokens = analyze(targetField, queryString);
 
         BooleanQuery.Builder builder = new BooleanQuery.Builder();
 
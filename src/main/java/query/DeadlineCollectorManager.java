@@ -0,0 +1,109 @@
+package query;
+
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.search.CollectionTerminatedException;
+import org.apache.lucene.search.CollectorManager;
+import org.apache.lucene.search.FilterCollector;
+import org.apache.lucene.search.FilterLeafCollector;
+import org.apache.lucene.search.LeafCollector;
+import org.apache.lucene.search.TopDocs;
+import org.apache.lucene.search.TopScoreDocCollector;
+
+import java.io.IOException;
+import java.util.Collection;
+
+/**
+ * Collects the top documents of a query until a deadline. Once the deadline has passed, the collectors stop collecting
+ * by throwing a CollectionTerminatedException, which the IndexSearcher swallows segment by segment; the documents
+ * collected until then are kept, and reduced into partial top documents.
+ *
+ * Lucene's TimeLimitingCollector is not used, as its TimeExceededException escapes IndexSearcher.search, and the
+ * partial results of the other slices would be lost when searching on an executor.
+ */
+public class DeadlineCollectorManager implements CollectorManager<DeadlineCollectorManager.DeadlineCollector, TopDocs> {
+    /**
+     * The deadline is checked every (COLLECT_CHECK_INTERVAL + 1) collected documents
+     */
+    private static final int COLLECT_CHECK_INTERVAL = 0xFF;
+
+    /**
+     * The number of top documents to collect
+     */
+    private final int numHits;
+    /**
+     * The deadline, as per System.nanoTime
+     */
+    private final long deadlineNanos;
+    /**
+     * Set by any of the collectors, once it has hit the deadline
+     */
+    private volatile boolean timedOut;
+
+    public DeadlineCollectorManager(int numHits, long deadlineNanos) {
+        this.numHits = numHits;
+        this.deadlineNanos = deadlineNanos;
+    }
+
+    /**
+     * @return true if the collection was cut short, i.e. the top documents are partial
+     */
+    public boolean isTimedOut() {
+        return timedOut;
+    }
+
+    @Override
+    public DeadlineCollector newCollector() {
+        return new DeadlineCollector(TopScoreDocCollector.create(numHits));
+    }
+
+    @Override
+    public TopDocs reduce(Collection<DeadlineCollector> collectors) {
+        TopDocs[] topDocs = new TopDocs[collectors.size()];
+        int i = 0;
+
+        for (DeadlineCollector collector : collectors)
+            topDocs[i++] = collector.topDocs();
+
+        return TopDocs.merge(numHits, topDocs);
+    }
+
+    private void checkDeadline() {
+        if (System.nanoTime() > deadlineNanos) {
+            timedOut = true;
+            throw new CollectionTerminatedException();
+        }
+    }
+
+    /**
+     * Wraps a top documents collector, and stops collecting once the deadline has passed
+     */
+    public class DeadlineCollector extends FilterCollector {
+        private DeadlineCollector(TopScoreDocCollector in) {
+            super(in);
+        }
+
+        /**
+         * @return the top documents collected so far
+         */
+        public TopDocs topDocs() {
+            return ((TopScoreDocCollector) in).topDocs();
+        }
+
+        @Override
+        public LeafCollector getLeafCollector(LeafReaderContext context) throws IOException {
+            checkDeadline();
+
+            return new FilterLeafCollector(super.getLeafCollector(context)) {
+                private int collected;
+
+                @Override
+                public void collect(int doc) throws IOException {
+                    if ((++collected & COLLECT_CHECK_INTERVAL) == 0)
+                        checkDeadline();
+
+                    super.collect(doc);
+                }
+            };
+        }
+    }
+}
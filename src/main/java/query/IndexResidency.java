@@ -0,0 +1,72 @@
+package query;
+
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Estimates how much of an on-disk index is resident in the page cache. Each index file is mapped in chunks, and
+ * MappedByteBuffer.isLoaded (which is backed by mincore) tells whether all pages of a chunk are in memory. Mapping a
+ * file does not fault its pages in, hence the measurement does not change what it measures.
+ */
+public class IndexResidency {
+    /**
+     * The granularity of the measurement; a chunk only counts as resident if all of its pages are
+     */
+    private static final long CHUNK_SIZE = 1L << 21;
+
+    /**
+     * The total size of the files of the index directory
+     *
+     * @param indexPath the path to the index directory
+     * @return the size in bytes
+     * @throws IOException if the directory cannot be listed
+     */
+    public static long indexBytes(Path indexPath) throws IOException {
+        long total = 0;
+
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(indexPath)) {
+            for (Path file : files)
+                if (Files.isRegularFile(file))
+                    total += Files.size(file);
+        }
+
+        return total;
+    }
+
+    /**
+     * A lower bound of the number of bytes of the index directory which are resident in memory
+     *
+     * @param indexPath the path to the index directory
+     * @return the resident size in bytes
+     * @throws IOException if the files cannot be mapped
+     */
+    public static long residentBytes(Path indexPath) throws IOException {
+        long resident = 0;
+
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(indexPath)) {
+            for (Path file : files) {
+                if (!Files.isRegularFile(file) || file.getFileName().toString().equals("write.lock"))
+                    continue;
+
+                try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+                    long size = channel.size();
+
+                    for (long position = 0; position < size; position += CHUNK_SIZE) {
+                        long length = Math.min(CHUNK_SIZE, size - position);
+                        MappedByteBuffer chunk = channel.map(FileChannel.MapMode.READ_ONLY, position, length);
+
+                        if (chunk.isLoaded())
+                            resident += length;
+                    }
+                }
+            }
+        }
+
+        return resident;
+    }
+}
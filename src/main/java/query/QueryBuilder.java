@@ -1,6 +1,8 @@
 package query;
 
 import org.apache.lucene.analysis.Analyzer;
+import org.apache.lucene.analysis.TokenStream;
+import org.apache.lucene.analysis.tokenattributes.CharTermAttribute;
 import org.apache.lucene.search.Query;
 
 import java.io.IOException;
@@ -8,6 +10,9 @@ import java.util.ArrayList;
 import java.util.List;
 
 /**
+ * Query builders are shared between threads (e.g. by the batch API of the QuerySolver), hence implementations
+ * must not keep per-query state in their fields.
+ *
  * @author Dan Graur 4/7/2018
  */
 public abstract class QueryBuilder {
@@ -16,9 +21,9 @@ public abstract class QueryBuilder {
      */
     protected Analyzer analyzer;
     /**
-     * The query tokens
+     * The expected maximal number of query tokens
      */
-    protected List<String> tokens;
+    protected int maxTokens;
 
     /**
      * The constructor
@@ -27,7 +32,7 @@ public abstract class QueryBuilder {
      */
     protected QueryBuilder(Analyzer analyzer) {
         this.analyzer = analyzer;
-        tokens = new ArrayList<>(128);
+        this.maxTokens = 128;
     }
 
     /**
@@ -37,7 +42,29 @@ public abstract class QueryBuilder {
      */
     public QueryBuilder(Analyzer analyzer, int maxTokens) {
         this.analyzer = analyzer;
-        this.tokens = new ArrayList<>(maxTokens);
+        this.maxTokens = maxTokens;
+    }
+
+    /**
+     * Analyze the query string; the tokens are gathered in a fresh list, such that concurrent calls do not interfere
+     *
+     * @param targetField the default search field in the index
+     * @param queryString the string which represents the user supplied query
+     * @return the analyzed tokens of the query
+     * @throws IOException if the token stream cannot be consumed
+     */
+    protected List<String> analyze(String targetField, String queryString) throws IOException {
+        List<String> tokens = new ArrayList<>(maxTokens);
+        TokenStream stream = analyzer.tokenStream(targetField, queryString);
+        stream.reset();
+
+        while(stream.incrementToken())
+            tokens.add(stream.getAttribute(CharTermAttribute.class).toString());
+
+        stream.end();
+        stream.close();
+
+        return tokens;
     }
 
     /**
@@ -48,4 +75,15 @@ public abstract class QueryBuilder {
      * @return the system used query
      */
     public abstract Query buildQuery(String targetField, String queryString) throws IOException;
+
+    /**
+     * The kind of builder and its analyzer, which determine the query; e.g. part of the key of a cached expansion
+     */
+    @Override
+    public String toString() {
+        return getClass().getSimpleName() + "{" +
+                "analyzer=" + analyzer.getClass().getSimpleName() +
+                ", maxTokens=" + maxTokens +
+                '}';
+    }
 }
@@ -0,0 +1,80 @@
+package query;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Executors for running queries concurrently, one task per query. On JDK 21+, each query can get its own virtual
+ * thread: queries mostly block on mmap page faults and stored field loads, hence thousands of them can be in flight
+ * without as many platform threads. On older JVMs, the executor falls back to a fixed pool of platform threads.
+ *
+ * The build targets Java 1.8, hence the virtual thread executor is looked up through reflection.
+ *
+ * Note that a virtual thread is pinned to its carrier while it holds a monitor (e.g. in the synchronized methods of
+ * the ResultCache and of LatencyStats); these sections are short, but they do not yield the carrier.
+ */
+public class QueryExecutors {
+    public enum Backend {
+        PLATFORM, VIRTUAL
+    }
+
+    /**
+     * Executors.newVirtualThreadPerTaskExecutor, if the JVM has it
+     */
+    private static final Method VIRTUAL_THREAD_EXECUTOR = lookUpVirtualThreadExecutor();
+
+    private QueryExecutors() {
+    }
+
+    /**
+     * @return true if the JVM supports virtual threads
+     */
+    public static boolean virtualThreadsAvailable() {
+        return VIRTUAL_THREAD_EXECUTOR != null;
+    }
+
+    /**
+     * Create an executor which runs each query on a virtual thread if the JVM supports them, or else on a fixed pool
+     *
+     * @param threadNumber the size of the fallback pool
+     * @return the executor; the caller is responsible for shutting it down
+     */
+    public static ExecutorService newPerQueryExecutor(int threadNumber) {
+        return newExecutor(Backend.VIRTUAL, threadNumber);
+    }
+
+    /**
+     * Create an executor of the given backend; VIRTUAL falls back to PLATFORM if the JVM does not support it
+     *
+     * @param backend the requested backend
+     * @param threadNumber the size of the platform thread pool
+     * @return the executor; the caller is responsible for shutting it down
+     */
+    public static ExecutorService newExecutor(Backend backend, int threadNumber) {
+        if (backend == Backend.VIRTUAL && VIRTUAL_THREAD_EXECUTOR != null) {
+            try {
+                return (ExecutorService) VIRTUAL_THREAD_EXECUTOR.invoke(null);
+            } catch (ReflectiveOperationException e) {
+                System.err.println("> Unable to create a virtual thread executor (" + e + "); falling back to a fixed pool");
+            }
+        }
+
+        return Executors.newFixedThreadPool(threadNumber);
+    }
+
+    /**
+     * @return the backend an executor of the given backend actually runs on, on this JVM
+     */
+    public static Backend effectiveBackend(Backend backend) {
+        return backend == Backend.VIRTUAL && VIRTUAL_THREAD_EXECUTOR != null ? Backend.VIRTUAL : Backend.PLATFORM;
+    }
+
+    private static Method lookUpVirtualThreadExecutor() {
+        try {
+            return Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+        } catch (NoSuchMethodException e) {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,262 @@
+package query;
+
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.search.BooleanClause;
+import org.apache.lucene.search.BooleanQuery;
+import org.apache.lucene.search.BoostQuery;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.TermQuery;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Sits between the query expansion and the second retrieval pass. Each clause of the (expanded) query is priced by
+ * the length of its postings list (i.e. the docFreq of its term). The terms of the original query are always kept, at
+ * their full weight, whatever their cost: only the expansion terms compete for what is left of the budget. These are
+ * admitted cheapest first, until the total postings budget is spent; the remaining ones are either dropped or
+ * down-weighted.
+ *
+ * Note that down-weighted clauses are still executed, hence they keep their recall contribution but do not lower the
+ * cost of the query. Only DROP gives a hard latency ceiling.
+ */
+public class QueryPlanner {
+    public enum OverBudgetPolicy {
+        DROP, DOWN_WEIGHT
+    }
+
+    /**
+     * The maximal number of postings the admitted clauses may traverse
+     */
+    private long postingsBudget;
+    /**
+     * What to do with the clauses which do not fit in the budget
+     */
+    private OverBudgetPolicy policy;
+    /**
+     * The boost of the over budget clauses, when the policy is DOWN_WEIGHT
+     */
+    private float downWeight;
+    /**
+     * Specifies if the estimated cost should be logged against the matched documents and the search time
+     */
+    private boolean verbose;
+
+    public QueryPlanner(long postingsBudget, OverBudgetPolicy policy, float downWeight, boolean verbose) {
+        this.postingsBudget = postingsBudget;
+        this.policy = policy;
+        this.downWeight = downWeight;
+        this.verbose = verbose;
+    }
+
+    public QueryPlanner(long postingsBudget, boolean verbose) {
+        this(postingsBudget, OverBudgetPolicy.DROP, 0.0f, verbose);
+    }
+
+    public long getPostingsBudget() {
+        return postingsBudget;
+    }
+
+    public void setPostingsBudget(long postingsBudget) {
+        this.postingsBudget = postingsBudget;
+    }
+
+    public OverBudgetPolicy getPolicy() {
+        return policy;
+    }
+
+    public void setPolicy(OverBudgetPolicy policy) {
+        this.policy = policy;
+    }
+
+    public boolean isVerbose() {
+        return verbose;
+    }
+
+    public void setVerbose(boolean verbose) {
+        this.verbose = verbose;
+    }
+
+    /**
+     * Fit the query in the postings budget. Only the top level SHOULD clauses of a BooleanQuery which do not hold a term
+     * of the original query are subject to the budget; any other clause is kept as is, since removing it would change
+     * the semantics of the query.
+     *
+     * @param query the (expanded) query
+     * @param originalTerms the (analyzed) terms of the original query
+     * @param reader the reader against which the query will be executed
+     * @return the plan, holding the rewritten query and its estimated cost
+     * @throws IOException if the term statistics cannot be read
+     */
+    public Plan plan(Query query, String[] originalTerms, IndexReader reader) throws IOException {
+        if (!(query instanceof BooleanQuery))
+            return new Plan(query, estimateCost(query, reader), 0, 0);
+
+        Set<String> original = new HashSet<>(Arrays.asList(originalTerms));
+        List<BooleanClause> fixedClauses = new ArrayList<>();
+        List<PricedClause> budgetedClauses = new ArrayList<>();
+        long fixedCost = 0;
+
+        for (BooleanClause clause : ((BooleanQuery) query).clauses())
+            if (clause.getOccur() == BooleanClause.Occur.SHOULD && !original.contains(termText(clause.getQuery())))
+                budgetedClauses.add(new PricedClause(clause.getQuery(), estimateCost(clause.getQuery(), reader)));
+            else {
+                fixedClauses.add(clause);
+                fixedCost += estimateCost(clause.getQuery(), reader);
+            }
+
+        /* Cheapest (i.e. most discriminative) clauses first */
+        budgetedClauses.sort((PricedClause c1, PricedClause c2) -> Long.compare(c1.cost, c2.cost));
+
+        BooleanQuery.Builder builder = new BooleanQuery.Builder();
+        builder.setMinimumNumberShouldMatch(((BooleanQuery) query).getMinimumNumberShouldMatch());
+
+        for (BooleanClause clause : fixedClauses)
+            builder.add(clause);
+
+        long estimatedCost = fixedCost;
+        int dropped = 0;
+        int downWeighted = 0;
+
+        for (PricedClause clause : budgetedClauses) {
+            if (estimatedCost + clause.cost <= postingsBudget) {
+                builder.add(clause.query, BooleanClause.Occur.SHOULD);
+                estimatedCost += clause.cost;
+            } else if (policy == OverBudgetPolicy.DOWN_WEIGHT) {
+                builder.add(new BoostQuery(clause.query, downWeight), BooleanClause.Occur.SHOULD);
+                estimatedCost += clause.cost;
+                ++downWeighted;
+            } else
+                ++dropped;
+        }
+
+        /* Never return an empty query; with no original term among the clauses, fall back to the single cheapest one */
+        if (dropped == budgetedClauses.size() && fixedClauses.isEmpty() && !budgetedClauses.isEmpty()) {
+            PricedClause cheapest = budgetedClauses.get(0);
+            return new Plan(cheapest.query, cheapest.cost, dropped - 1, 0);
+        }
+
+        return new Plan(builder.build(), estimatedCost, dropped, downWeighted);
+    }
+
+    /**
+     * Log the estimated cost of a plan, together with the number of documents the query matched and its search time.
+     * These are not the postings the query traversed, but they tell if the estimate tracks the actual work.
+     *
+     * @param plan the executed plan
+     * @param matchedDocuments the number of documents the query matched
+     * @param elapsedNanos the time it took to execute the query
+     */
+    public void report(Plan plan, long matchedDocuments, long elapsedNanos) {
+        if (verbose)
+            System.out.println(
+                    "> Planner: estimated postings: " + plan.getEstimatedCost() +
+                    " (budget " + postingsBudget + ", dropped " + plan.getDroppedClauses() +
+                    ", down-weighted " + plan.getDownWeightedClauses() + ")" +
+                    "; matched documents: " + matchedDocuments +
+                    "; search time: " + (elapsedNanos / 1_000_000.0) + " ms"
+            );
+    }
+
+    @Override
+    public String toString() {
+        return "QueryPlanner{" +
+                "postingsBudget=" + postingsBudget +
+                ", policy=" + policy +
+                ", downWeight=" + downWeight +
+                '}';
+    }
+
+    /**
+     * Estimate the number of postings a query will traverse
+     *
+     * @param query the query to be priced
+     * @param reader the reader providing the term statistics
+     * @return the estimated number of postings; 0 if the query type cannot be priced
+     * @throws IOException if the term statistics cannot be read
+     */
+    private long estimateCost(Query query, IndexReader reader) throws IOException {
+        if (query instanceof BoostQuery)
+            return estimateCost(((BoostQuery) query).getQuery(), reader);
+
+        if (query instanceof TermQuery)
+            return reader.docFreq(((TermQuery) query).getTerm());
+
+        if (query instanceof BooleanQuery) {
+            long cost = 0;
+
+            for (BooleanClause clause : ((BooleanQuery) query).clauses())
+                cost += estimateCost(clause.getQuery(), reader);
+
+            return cost;
+        }
+
+        return 0;
+    }
+
+    /**
+     * The text of the term of a (possibly boosted) term query
+     *
+     * @param query the query of a clause
+     * @return the text of its term; null if it is not a term query
+     */
+    private static String termText(Query query) {
+        if (query instanceof BoostQuery)
+            return termText(((BoostQuery) query).getQuery());
+
+        if (query instanceof TermQuery)
+            return ((TermQuery) query).getTerm().text();
+
+        return null;
+    }
+
+    /**
+     * A clause, together with its estimated cost
+     */
+    private static class PricedClause {
+        private final Query query;
+        private final long cost;
+
+        private PricedClause(Query query, long cost) {
+            this.query = query;
+            this.cost = cost;
+        }
+    }
+
+    /**
+     * The outcome of planning a query
+     */
+    public static class Plan {
+        private final Query query;
+        private final long estimatedCost;
+        private final int droppedClauses;
+        private final int downWeightedClauses;
+
+        public Plan(Query query, long estimatedCost, int droppedClauses, int downWeightedClauses) {
+            this.query = query;
+            this.estimatedCost = estimatedCost;
+            this.droppedClauses = droppedClauses;
+            this.downWeightedClauses = downWeightedClauses;
+        }
+
+        public Query getQuery() {
+            return query;
+        }
+
+        public long getEstimatedCost() {
+            return estimatedCost;
+        }
+
+        public int getDroppedClauses() {
+            return droppedClauses;
+        }
+
+        public int getDownWeightedClauses() {
+            return downWeightedClauses;
+        }
+    }
+}
@@ -1,19 +1,49 @@
 package query;
 
+import eval.RunFileWriter;
 import org.apache.lucene.document.Document;
 import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.MultiReader;
 import org.apache.lucene.search.IndexSearcher;
 import org.apache.lucene.search.Query;
+import org.apache.lucene.search.ReferenceManager;
 import org.apache.lucene.search.ScoreDoc;
-import org.apache.lucene.search.TopScoreDocCollector;
+import org.apache.lucene.search.SearcherFactory;
+import org.apache.lucene.search.SearcherManager;
+import org.apache.lucene.search.TopDocs;
 import org.apache.lucene.search.similarities.Similarity;
+import org.apache.lucene.store.Directory;
 import org.apache.lucene.store.FSDirectory;
+import org.apache.lucene.store.IOContext;
+import org.apache.lucene.store.MMapDirectory;
+import org.apache.lucene.store.RAMDirectory;
 import query.expansion.Expander;
+import query.expansion.FeedbackExpander;
+import query.expansion.prediction.ExpansionPredictor;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.file.DirectoryStream;
 import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
 /**
  * One must first create an object of this class. The one should initiate the solver
@@ -22,6 +52,52 @@ import java.util.*;
  * @author Dan Graur 4/6/2018
  */
 public class QuerySolver {
+    /**
+     * The way the index directory is opened
+     */
+    public enum DirectoryMode {
+        /**
+         * Lucene's default FSDirectory for the platform
+         */
+        FS,
+        /**
+         * An MMapDirectory over the on-disk index, optionally preloaded
+         */
+        MMAP,
+        /**
+         * The index is copied on the heap, in a RAMDirectory; only suitable for small indexes, as it stresses the GC
+         */
+        RAM,
+        /**
+         * The index is copied in a memory backed file system (e.g. /dev/shm), and mapped with preload; it is held in
+         * RAM, but off the heap
+         */
+        OFF_HEAP
+    }
+
+    /**
+     * The ways in which a query can fall back, when it exceeds its time budget
+     */
+    public enum Fallback {
+        /**
+         * The first pass ran out of time; its partial results are returned
+         */
+        FIRST_PASS_TIMEOUT,
+        /**
+         * The first pass used too much of the budget; its results are returned without expansion
+         */
+        EXPANSION_SKIPPED,
+        /**
+         * The second pass ran out of time; the first pass results are returned
+         */
+        SECOND_PASS_TIMEOUT
+    }
+
+    /**
+     * The default maximal number of queries in flight, when streaming a batch into a run file
+     */
+    public static final int DEFAULT_MAX_IN_FLIGHT = 64;
+
     /**
      * The field indicating the id
      */
@@ -62,6 +138,101 @@ public class QuerySolver {
      */
     private Expander queryExpander;
 
+    /**
+     * Optional planner which fits the expanded query in a postings budget
+     */
+    private QueryPlanner queryPlanner;
+
+    /**
+     * The similarity of the second (expanded) pass; null for the similarity of the first pass
+     */
+    private Similarity secondPassSimilarity;
+
+    /**
+     * The paths to the shard indexes, in sharded mode; null otherwise
+     */
+    private List<String> shardPaths;
+
+    /**
+     * The searcher manager, in near-real-time mode; null otherwise
+     */
+    private SearcherManager searcherManager;
+
+    /**
+     * Refreshes the searcher manager on a schedule, in near-real-time mode
+     */
+    private ScheduledExecutorService refresher;
+
+    /**
+     * Searchers over the same reader, for similarities other than the one of the solver
+     */
+    private final Map<String, IndexSearcher> similaritySearchers = new ConcurrentHashMap<>();
+
+    /**
+     * Optional executor on which the searcher scores segment slices in parallel
+     */
+    private ExecutorService searchExecutor;
+
+    /**
+     * The policy which groups the segments into slices, when a search executor is in place
+     */
+    private SlicedIndexSearcher.SlicingPolicy slicingPolicy;
+
+    /**
+     * Optional cache of the final results of the queries
+     */
+    private ResultCache resultCache;
+
+    /**
+     * Optional predictor which decides, per query, whether the expansion is run
+     */
+    private ExpansionPredictor expansionPredictor;
+
+    /* Expansion counters, used to report the work saved by the predictor */
+    private final AtomicLong executedExpansions = new AtomicLong();
+    private final AtomicLong skippedExpansions = new AtomicLong();
+    private final AtomicLong expansionNanos = new AtomicLong();
+
+    /**
+     * The latency budget of a query, in milliseconds; 0 or less disables it
+     */
+    private long timeBudgetMillis;
+
+    /**
+     * The fraction of the time budget after which the first pass is considered too slow to be followed by expansion
+     */
+    private float expansionCutoff;
+
+    /**
+     * How many times each of the time budget fallbacks was taken
+     */
+    private final Map<Fallback, AtomicLong> fallbackCounts = newFallbackCounts();
+
+    /**
+     * The way the index directory is opened
+     */
+    private DirectoryMode directoryMode = DirectoryMode.FS;
+
+    /**
+     * If true, the mapped index files are loaded in memory when the index is opened (MMAP mode only)
+     */
+    private boolean preload;
+
+    /**
+     * The memory backed file system in which the OFF_HEAP mode copies the index
+     */
+    private String offHeapRoot = "/dev/shm";
+
+    /**
+     * The copy of the index made by the OFF_HEAP mode; deleted when the solver is terminated
+     */
+    private Path inMemoryCopy;
+
+    /**
+     * Queries which are answered (and discarded) before initiateSolver returns, such that the caches are hot
+     */
+    private Collection<String> warmUpQueries = Collections.emptyList();
+
     /**
      * Specifies if it should be verbose or not
 
@@ -192,6 +363,180 @@ public class QuerySolver {
         this.idField = idField;
     }
 
+    public Expander getQueryExpander() {
+        return queryExpander;
+    }
+
+    public void setQueryExpander(Expander queryExpander) {
+        this.queryExpander = queryExpander;
+    }
+
+    public QueryPlanner getQueryPlanner() {
+        return queryPlanner;
+    }
+
+    public void setQueryPlanner(QueryPlanner queryPlanner) {
+        this.queryPlanner = queryPlanner;
+    }
+
+    /**
+     * Make the searcher score segment slices in parallel; must be called before the solver is initiated
+     *
+     * @param searchExecutor the executor on which the slices are scored; it is not shut down by the solver. It must not
+     *                       be the executor of a batch (see answerQueries), as a query task would then wait on slice
+     *                       tasks queued behind it
+     * @param slicingPolicy the policy which groups the segments into slices
+     */
+    public void setSearchExecutor(ExecutorService searchExecutor, SlicedIndexSearcher.SlicingPolicy slicingPolicy) {
+        this.searchExecutor = searchExecutor;
+        this.slicingPolicy = slicingPolicy;
+    }
+
+    public List<String> getShardPaths() {
+        return shardPaths;
+    }
+
+    /**
+     * Search a sharded index (see IndexCreator.setShardNumber) instead of the single index at pathToIndex; must be
+     * called before the solver is initiated. The shards are opened as one MultiReader, hence the term statistics, and
+     * so the scores, are global, and the feedback documents of the expansion come from the merged top documents.
+     *
+     * A query is scattered to the shards in parallel if a search executor is set; unless a slicing policy is given,
+     * each shard is then scored by its own task (see SlicingPolicy.perShard). The near-real-time mode and the OFF_HEAP
+     * directory mode do not support shards.
+     *
+     * @param shardPaths the paths to the shard indexes, or null for a single index
+     */
+    public void setShardPaths(List<String> shardPaths) {
+        this.shardPaths = shardPaths;
+    }
+
+    public ExpansionPredictor getExpansionPredictor() {
+        return expansionPredictor;
+    }
+
+    /**
+     * Set the predictor which decides, per query, whether the expansion (and the second pass) is run
+     *
+     * @param expansionPredictor the predictor, or null to always expand
+     */
+    public void setExpansionPredictor(ExpansionPredictor expansionPredictor) {
+        this.expansionPredictor = expansionPredictor;
+    }
+
+    public long getExecutedExpansions() {
+        return executedExpansions.get();
+    }
+
+    public long getSkippedExpansions() {
+        return skippedExpansions.get();
+    }
+
+    /**
+     * Summarize the expansions which were run and skipped. The saved time is estimated from the average cost of the
+     * expansions (expansion and second pass) which were run.
+     *
+     * @return a printable report
+     */
+    public String getExpansionReport() {
+        long executed = executedExpansions.get();
+        long skipped = skippedExpansions.get();
+        double averageMillis = executed == 0 ? 0.0 : expansionNanos.get() / 1_000_000.0 / executed;
+
+        return "Expansions run: " + executed +
+                ", skipped: " + skipped +
+                ", average expansion cost: " + averageMillis + " ms" +
+                ", estimated time saved: " + (averageMillis * skipped) + " ms";
+    }
+
+    /**
+     * Set a per query latency budget
+     *
+     * @param timeBudgetMillis the budget in milliseconds; 0 disables it
+     * @param expansionCutoff the fraction of the budget after which the first pass is not followed by expansion
+     */
+    public void setTimeBudget(long timeBudgetMillis, float expansionCutoff) {
+        this.timeBudgetMillis = timeBudgetMillis;
+        this.expansionCutoff = expansionCutoff;
+    }
+
+    public long getTimeBudgetMillis() {
+        return timeBudgetMillis;
+    }
+
+    /**
+     * @return how many times each of the time budget fallbacks was taken
+     */
+    public Map<Fallback, Long> getFallbackCounts() {
+        Map<Fallback, Long> counts = new EnumMap<>(Fallback.class);
+
+        for (Map.Entry<Fallback, AtomicLong> entry : fallbackCounts.entrySet())
+            counts.put(entry.getKey(), entry.getValue().get());
+
+        return counts;
+    }
+
+    public ResultCache getResultCache() {
+        return resultCache;
+    }
+
+    /**
+     * Set the result cache; the cache keys contain the similarity, the expander and the planner, hence these must
+     * describe their configuration in their toString
+     *
+     * @param resultCache the cache, or null to disable caching
+     */
+    public void setResultCache(ResultCache resultCache) {
+        this.resultCache = resultCache;
+    }
+
+    public Similarity getSecondPassSimilarity() {
+        return secondPassSimilarity;
+    }
+
+    /**
+     * Score the second (expanded) pass with another similarity than the first one; the feedback documents, hence the
+     * expansions, then do not depend on it
+     *
+     * @param secondPassSimilarity the similarity of the second pass, or null for the similarity of the first pass
+     */
+    public void setSecondPassSimilarity(Similarity secondPassSimilarity) {
+        this.secondPassSimilarity = secondPassSimilarity;
+    }
+
+    public DirectoryMode getDirectoryMode() {
+        return directoryMode;
+    }
+
+    /**
+     * Set the way the index directory is opened; must be called before the solver is initiated
+     *
+     * @param directoryMode the directory implementation to be used
+     * @param preload if true, the mapped files are loaded in memory on opening (MMAP mode only)
+     */
+    public void setDirectoryMode(DirectoryMode directoryMode, boolean preload) {
+        this.directoryMode = directoryMode;
+        this.preload = preload;
+    }
+
+    /**
+     * Set the memory backed file system in which the OFF_HEAP mode copies the index
+     *
+     * @param offHeapRoot a directory on a RAM file system, e.g. /dev/shm
+     */
+    public void setOffHeapRoot(String offHeapRoot) {
+        this.offHeapRoot = offHeapRoot;
+    }
+
+    /**
+     * Set the queries which are replayed before initiateSolver returns (e.g. a sample of the outline queries)
+     *
+     * @param warmUpQueries the plain warm-up queries
+     */
+    public void setWarmUpQueries(Collection<String> warmUpQueries) {
+        this.warmUpQueries = warmUpQueries;
+    }
+
     public boolean isVerbose() {
         return verbose;
     }
@@ -211,6 +556,138 @@ public class QuerySolver {
 
         /* Set the similarity of the searcher */
         searcher.setSimilarity(similarity);
+
+        warmUpOrTerminate();
+    }
+
+    /**
+     * Initiates the query solver in near-real-time mode: the searchers are opened from the (shared) writer, hence they
+     * see its uncommitted segments, and are refreshed on a schedule or on demand (see refresh). In-flight queries keep
+     * the searcher they started with, until they are done with it.
+     *
+     * @param writer the writer which is ingesting the corpus (e.g. the one of the IndexCreator)
+     * @param refreshIntervalMillis the interval between scheduled refreshes; 0 or less for on demand refreshes only
+     * @throws IOException if unable to open a reader from the writer
+     */
+    public void initiateSolver(IndexWriter writer, long refreshIntervalMillis) throws IOException {
+        if (shardPaths != null)
+            throw new IllegalStateException("The near-real-time mode does not support shards");
+
+        searcherManager = new SearcherManager(writer, new SearcherFactory() {
+            @Override
+            public IndexSearcher newSearcher(IndexReader reader, IndexReader previousReader) {
+                IndexSearcher nrtSearcher = newSearcherFor(reader);
+                nrtSearcher.setSimilarity(similarity);
+                return nrtSearcher;
+            }
+        });
+
+        /* The searchers of the other similarities are over the superseded reader; let them go with it */
+        searcherManager.addListener(new ReferenceManager.RefreshListener() {
+            @Override
+            public void beforeRefresh() {
+            }
+
+            @Override
+            public void afterRefresh(boolean didRefresh) {
+                if (didRefresh)
+                    similaritySearchers.clear();
+            }
+        });
+
+        if (refreshIntervalMillis > 0) {
+            refresher = Executors.newSingleThreadScheduledExecutor();
+            refresher.scheduleWithFixedDelay(() -> {
+                try {
+                    searcherManager.maybeRefresh();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }, refreshIntervalMillis, refreshIntervalMillis, TimeUnit.MILLISECONDS);
+        }
+
+        warmUpOrTerminate();
+    }
+
+    /**
+     * Make the latest changes of the writer visible to the queries which start from now on (near-real-time mode only)
+     *
+     * @throws IOException if unable to reopen the reader
+     */
+    public void refresh() throws IOException {
+        if (searcherManager == null)
+            throw new IllegalStateException("The solver is not in near-real-time mode");
+
+        searcherManager.maybeRefreshBlocking();
+    }
+
+    /**
+     * Replay the warm-up queries, if any. If this fails, the solver is terminated, such that neither its reader (nor the
+     * in-memory copy of the index), nor the refresher thread of the near-real-time mode outlive it.
+     *
+     * @throws IOException if a warm-up query fails
+     */
+    private void warmUpOrTerminate() throws IOException {
+        try {
+            if (!warmUpQueries.isEmpty())
+                warmUp();
+        } catch (IOException | RuntimeException e) {
+            try {
+                terminateSovler();
+            } catch (IOException closeFailure) {
+                e.addSuppressed(closeFailure);
+            }
+
+            throw e;
+        }
+    }
+
+    /**
+     * Replay the warm-up queries, and report how long this took and how much of the index is resident afterwards. The
+     * queries bypass the result cache, and the expansion and fallback counters are reset afterwards, such that the
+     * warm-up does not show in the results nor in the reports of the queries which follow.
+     *
+     * @throws IOException if a warm-up query fails
+     */
+    private void warmUp() throws IOException {
+        boolean wasVerbose = verbose;
+        verbose = false;
+
+        long start = System.nanoTime();
+        IndexSearcher warmUpSearcher = acquireSearcher();
+
+        try {
+            for (String q : warmUpQueries)
+                search(warmUpSearcher, queryExpander, queryBuilder.buildQuery(targetField, q), q, 10);
+        } finally {
+            releaseSearcher(warmUpSearcher);
+            verbose = wasVerbose;
+        }
+
+        executedExpansions.set(0);
+        skippedExpansions.set(0);
+        expansionNanos.set(0);
+
+        for (AtomicLong count : fallbackCounts.values())
+            count.set(0);
+
+        long elapsed = System.nanoTime() - start;
+
+        List<String> indexPaths = shardPaths != null ? shardPaths : Collections.singletonList(pathToIndex);
+        long indexBytes = 0;
+        long residentBytes = 0;
+
+        for (String indexPathName : indexPaths) {
+            Path indexPath = inMemoryCopy != null ? inMemoryCopy : FileSystems.getDefault().getPath(indexPathName);
+            indexBytes += IndexResidency.indexBytes(indexPath);
+            residentBytes += IndexResidency.residentBytes(indexPath);
+        }
+
+        System.out.println(
+                "> Warm-up: " + warmUpQueries.size() + " queries in " + (elapsed / 1_000_000.0) + " ms" +
+                "; index size: " + (indexBytes >> 20) + " MB" +
+                ", resident: " + (residentBytes >> 20) + " MB (" + (indexBytes == 0 ? 0 : 100 * residentBytes / indexBytes) + "%)"
+        );
     }
 
     /**
@@ -222,47 +699,312 @@ public class QuerySolver {
      * @return a list of paragraph ids
      */
     public List<String> answerQuery(String q, int resultNumber) throws IOException {
-        Query query = queryBuilder.buildQuery(targetField, q);
         List<String> res = new ArrayList<>();
-        TopScoreDocCollector collector = TopScoreDocCollector.create(resultNumber);
-        searcher.search(query, collector);
+
+        try (Stream<SearchHit> hits = searchHits(q, resultNumber)) {
+            hits.forEachOrdered((SearchHit hit) -> {
+                if (!idField.isEmpty()) {
+                    if (verbose)
+                        System.out.println("\t>> Paragraph ID: " + hit.getParaId());
+
+                    res.add(hit.getParaId());
+                }
+
+                if (verbose)
+                    System.out.println("\t>> Raw Paragraph: " + hit.getText() + "\n\t>> Match Score: " + hit.getScore() + '\n');
+            });
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+
+        return res;
+    }
+
+    /**
+     * Solves a query, and streams its hits in rank order. The hits carry the doc id and the score; the stored fields
+     * are only loaded if the consumer asks for them (see SearchHit).
+     *
+     * In near-real-time mode, the stream holds a reference on its searcher until it is closed, such that the hits can
+     * be resolved even if the searcher is refreshed meanwhile; callers must close it (e.g. try-with-resources).
+     *
+     * @param q the query string to solve
+     * @param resultNumber the number of results to be returned
+     * @throws IOException when unable to build or run the query
+     * @return the stream of hits
+     */
+    public Stream<SearchHit> searchHits(String q, int resultNumber) throws IOException {
+        return searchHits(q, resultNumber, null, queryExpander);
+    }
+
+    /**
+     * Solves a query with a similarity and an expander other than those of the solver (e.g. per request parameters of
+     * the query server), and streams its hits in rank order.
+     *
+     * @param q the query string to solve
+     * @param resultNumber the number of results to be returned
+     * @param similarity the similarity of both passes, or null for the similarity of the solver
+     * @param expander the query expanding strategy, or null for no expansion
+     * @throws IOException when unable to build or run the query
+     * @return the stream of hits
+     */
+    public Stream<SearchHit> searchHits(String q, int resultNumber, Similarity similarity, Expander expander) throws IOException {
+        IndexSearcher baseSearcher = acquireSearcher();
+
+        try {
+            IndexSearcher searcher = similarity == null ? baseSearcher : searcherFor(baseSearcher, similarity);
+            TopDocs topDocs = retrieve(searcher, expander, q, resultNumber);
+
+            return Arrays
+                    .stream(topDocs.scoreDocs)
+                    .map((ScoreDoc scoreDoc) -> new SearchHit(searcher, scoreDoc.doc, scoreDoc.score, idField, targetField))
+                    .onClose(() -> {
+                        try {
+                            releaseSearcher(baseSearcher);
+                        } catch (IOException e) {
+                            throw new UncheckedIOException(e);
+                        }
+                    });
+        } catch (IOException | RuntimeException e) {
+            releaseSearcher(baseSearcher);
+            throw e;
+        }
+    }
+
+    /**
+     * Run both retrieval passes of a query, unless its results are already in the result cache
+     *
+     * @param searcher the searcher on which the query is run
+     * @param expander the query expanding strategy, or null for no expansion
+     * @param q the query string to solve
+     * @param resultNumber the number of results to be returned
+     * @return the top documents of the final pass
+     * @throws IOException when unable to build or run the query
+     */
+    private TopDocs retrieve(IndexSearcher searcher, Expander expander, String q, int resultNumber) throws IOException {
+        Query query = queryBuilder.buildQuery(targetField, q);
+
+        if (resultCache == null)
+            return search(searcher, expander, query, q, resultNumber).topDocs;
+
+        String key = cacheKey(searcher, expander, unParseQuery(query), resultNumber);
+        TopDocs topDocs = resultCache.get(searcher.getIndexReader(), key);
+
+        if (topDocs == null) {
+            Retrieval retrieval = search(searcher, expander, query, q, resultNumber);
+            topDocs = retrieval.topDocs;
+
+            /* Degraded results (see the time budget) are not worth remembering */
+            if (retrieval.fallback == null)
+                resultCache.put(searcher.getIndexReader(), key, topDocs);
+        } else if (verbose)
+            System.out.println("> The Raw Query: " + q + " (cached)");
+
+        return topDocs;
+    }
+
+    /**
+     * Run both retrieval passes of a query. The searches go through IndexSearcher.search, such that a searcher with an
+     * executor scores its segment slices in parallel.
+     *
+     * When a time budget is set, both passes are collected until the budget's deadline. The expansion is skipped if the
+     * first pass has used more than the expansion cutoff of the budget, and the first pass results are returned if the
+     * second pass runs out of time.
+     *
+     * @param searcher the searcher on which the query is run
+     * @param expander the query expanding strategy, or null for no expansion
+     * @param query the (first pass) query
+     * @param q the query string to solve
+     * @param resultNumber the number of results to be returned
+     * @return the top documents of the final pass, and the fallback which produced them (if any)
+     * @throws IOException when unable to run the query
+     */
+    private Retrieval search(IndexSearcher searcher, Expander expander, Query query, String q, int resultNumber) throws IOException {
+        long start = System.nanoTime();
+        long deadline = start + timeBudgetMillis * 1_000_000L;
+
+        DeadlineCollectorManager firstPass = timeBudgetMillis > 0 ? newDeadlineManager(searcher, resultNumber, deadline) : null;
+        TopDocs topDocs = firstPass == null ? searcher.search(query, resultNumber) : searcher.search(query, firstPass);
 
 //        System.out.println(">>>>>? " + query.toString());
 
         if (verbose)
             System.out.println("> The Raw Query: " + q);
 
+        if (firstPass != null && firstPass.isTimedOut())
+            return fallback(q, Fallback.FIRST_PASS_TIMEOUT, topDocs);
+
         /* If there is a query expander in place, then expand the query by first gathering some relevant documents */
-        if (queryExpander != null) {
-            List<Document> relevantDocuments = new ArrayList<>();
+        if (expander != null) {
+            if (firstPass != null && System.nanoTime() - start > expansionCutoff * timeBudgetMillis * 1_000_000L)
+                return fallback(q, Fallback.EXPANSION_SKIPPED, topDocs);
+
+            /* Let the predictor decide if this query is worth a second pass */
+            if (expansionPredictor != null && !expansionPredictor.shouldExpand(unParseQuery(query), topDocs, searcher, targetField)) {
+                skippedExpansions.incrementAndGet();
+
+                if (verbose)
+                    System.out.println("> Expansion skipped by " + expansionPredictor);
 
-            for (ScoreDoc scoreDoc : collector.topDocs().scoreDocs) {
-                relevantDocuments.add(searcher.doc(scoreDoc.doc));
-//                System.out.println(searcher.getIndexReader().getTermVector(scoreDoc.doc, targetField));
+                return new Retrieval(topDocs, null);
             }
 
+            long expansionStart = System.nanoTime();
+
             /* Send the query for expansion; first make sure to unparse it, as to remove Lucene specific additions */
-            query = queryExpander.expand(unParseQuery(query), relevantDocuments);
-            collector = TopScoreDocCollector.create(resultNumber);
-            searcher.search(query, collector);
-        }
+            String[] originalTerms = unParseQuery(query);
 
-        /* Perform the true query */
-        for (ScoreDoc scoreDoc : collector.topDocs().scoreDocs) {
-            Document doc = searcher.doc(scoreDoc.doc);
+            if (expander instanceof FeedbackExpander)
+                /* The expander reads the feedback documents from the index itself */
+                query = ((FeedbackExpander) expander).expand(originalTerms, topDocs.scoreDocs, searcher.getIndexReader());
+            else {
+                List<Document> relevantDocuments = new ArrayList<>();
 
-            if (!idField.isEmpty()) {
-                if (verbose)
-                    System.out.println("\t>> Paragraph ID: " + doc.getField(idField).stringValue());
+                for (ScoreDoc scoreDoc : topDocs.scoreDocs) {
+                    relevantDocuments.add(searcher.doc(scoreDoc.doc));
+//                    System.out.println(searcher.getIndexReader().getTermVector(scoreDoc.doc, targetField));
+                }
+
+                query = expander.expand(originalTerms, relevantDocuments);
+            }
+
+            /* Fit the expanded query in the postings budget, if a planner is in place */
+            QueryPlanner.Plan plan = null;
 
-                res.add(doc.getField(idField).stringValue());
+            if (queryPlanner != null) {
+                plan = queryPlanner.plan(query, originalTerms, searcher.getIndexReader());
+                query = plan.getQuery();
             }
 
-            if (verbose)
-                System.out.println("\t>> Raw Paragraph: " + doc.getField(targetField).stringValue() + "\n\t>> Match Score: " + scoreDoc.score + '\n');
+            long secondPassStart = System.nanoTime();
+            IndexSearcher secondPassSearcher = secondPassSimilarity == null ? searcher : searcherFor(searcher, secondPassSimilarity);
+            DeadlineCollectorManager secondPass = firstPass != null ? newDeadlineManager(secondPassSearcher, resultNumber, deadline) : null;
+            TopDocs expandedDocs = secondPass == null ? secondPassSearcher.search(query, resultNumber) : secondPassSearcher.search(query, secondPass);
+
+            if (plan != null)
+                queryPlanner.report(plan, expandedDocs.totalHits, System.nanoTime() - secondPassStart);
+
+            /* The complete first pass beats a second pass which only saw part of the index */
+            if (secondPass != null && secondPass.isTimedOut())
+                return fallback(q, Fallback.SECOND_PASS_TIMEOUT, topDocs);
+
+            topDocs = expandedDocs;
+
+            expansionNanos.addAndGet(System.nanoTime() - expansionStart);
+            executedExpansions.incrementAndGet();
         }
 
-        return res;
+        return new Retrieval(topDocs, null);
+    }
+
+    /**
+     * Record and report a fallback of the time budget
+     *
+     * @param q the query string
+     * @param fallback the fallback
+     * @param topDocs the results which are returned instead
+     * @return the degraded retrieval
+     */
+    private Retrieval fallback(String q, Fallback fallback, TopDocs topDocs) {
+        fallbackCounts.get(fallback).incrementAndGet();
+
+        if (verbose)
+            System.err.println("> Time budget of " + timeBudgetMillis + " ms: " + fallback + " for query: " + q);
+
+        return new Retrieval(topDocs, fallback);
+    }
+
+    private static Map<Fallback, AtomicLong> newFallbackCounts() {
+        Map<Fallback, AtomicLong> counts = new EnumMap<>(Fallback.class);
+
+        for (Fallback fallback : Fallback.values())
+            counts.put(fallback, new AtomicLong());
+
+        return counts;
+    }
+
+    private DeadlineCollectorManager newDeadlineManager(IndexSearcher searcher, int resultNumber, long deadline) {
+        /* Same capping as IndexSearcher.search(Query, int) */
+        int numHits = Math.max(1, Math.min(resultNumber, searcher.getIndexReader().maxDoc()));
+
+        return new DeadlineCollectorManager(numHits, deadline);
+    }
+
+    /**
+     * Compare, query by query, the latency of the parallel (sliced) searcher against a sequential searcher over the
+     * same reader. The solver must have been configured with a search executor. Each query is run once on both
+     * searchers before it is timed, and the timed runs alternate their order; the latencies are printed if verbose.
+     *
+     * @param queries the queries to be timed
+     * @param resultNumber the number of results to be returned per query
+     * @return a map between the query ids and the speedup of the parallel searcher, ordered by query id
+     * @throws IOException when unable to run a query
+     */
+    public SortedMap<String, Double> compareSegmentParallelism(Collection<TRECQuery> queries, int resultNumber) throws IOException {
+        if (searchExecutor == null)
+            throw new IllegalStateException("The solver has no search executor; see setSearchExecutor");
+
+        IndexSearcher searcher = acquireSearcher();
+        IndexSearcher sequentialSearcher = new IndexSearcher(searcher.getIndexReader());
+        sequentialSearcher.setSimilarity(similarity);
+
+        SortedMap<String, Double> speedups = new TreeMap<>();
+        double speedupSum = 0.0;
+
+        /* The result cache is bypassed, as the second run would otherwise be a cache hit */
+        try {
+            boolean sequentialFirst = true;
+
+            for (TRECQuery trecQuery : queries) {
+                String q = trecQuery.getPlainQuery();
+
+                /* A discarded run of each searcher warms the caches of both, such that neither is timed cold */
+                search(sequentialSearcher, queryExpander, queryBuilder.buildQuery(targetField, q), q, resultNumber);
+                search(searcher, queryExpander, queryBuilder.buildQuery(targetField, q), q, resultNumber);
+
+                /* The order of the timed runs alternates between the queries, such that neither is always second */
+                long sequentialTime;
+                long parallelTime;
+
+                if (sequentialFirst) {
+                    sequentialTime = timeSearch(sequentialSearcher, q, resultNumber);
+                    parallelTime = timeSearch(searcher, q, resultNumber);
+                } else {
+                    parallelTime = timeSearch(searcher, q, resultNumber);
+                    sequentialTime = timeSearch(sequentialSearcher, q, resultNumber);
+                }
+
+                sequentialFirst = !sequentialFirst;
+
+                double speedup = (double) sequentialTime / (double) Math.max(parallelTime, 1L);
+                speedups.put(trecQuery.getQueryId(), speedup);
+                speedupSum += speedup;
+
+                if (verbose)
+                    System.out.println(
+                            "> " + trecQuery.getQueryId() +
+                            ": sequential " + (sequentialTime / 1_000_000.0) + " ms" +
+                            ", parallel " + (parallelTime / 1_000_000.0) + " ms" +
+                            ", speedup " + speedup
+                    );
+            }
+        } finally {
+            releaseSearcher(searcher);
+        }
+
+        if (verbose && !speedups.isEmpty())
+            System.out.println("> Average speedup over " + speedups.size() + " queries: " + (speedupSum / speedups.size()));
+
+        return speedups;
+    }
+
+    /**
+     * @return the time of both passes of a query on a searcher, in ns
+     */
+    private long timeSearch(IndexSearcher searcher, String q, int resultNumber) throws IOException {
+        long start = System.nanoTime();
+        search(searcher, queryExpander, queryBuilder.buildQuery(targetField, q), q, resultNumber);
+
+        return System.nanoTime() - start;
     }
 
     /**
@@ -271,7 +1013,33 @@ public class QuerySolver {
      * @throws IOException if unable to close the index reader
      */
     public void terminateSovler() throws IOException {
-        searcher.getIndexReader().close();
+        if (searcherManager != null) {
+            if (refresher != null)
+                refresher.shutdownNow();
+
+            /* The manager closes its current reader; the writer belongs to the caller */
+            searcherManager.close();
+        } else
+            searcher.getIndexReader().close();
+
+        deleteInMemoryCopy();
+    }
+
+    /**
+     * Release the RAM held by the off-heap copy of the index, if there is one
+     *
+     * @throws IOException if the copy cannot be deleted
+     */
+    private void deleteInMemoryCopy() throws IOException {
+        if (inMemoryCopy != null) {
+            try (DirectoryStream<Path> files = Files.newDirectoryStream(inMemoryCopy)) {
+                for (Path file : files)
+                    Files.delete(file);
+            }
+
+            Files.delete(inMemoryCopy);
+            inMemoryCopy = null;
+        }
     }
 
     /**
@@ -309,8 +1077,341 @@ public class QuerySolver {
         return res;
     }
 
+    /**
+     * Answer a batch of queries concurrently, on the shared searcher
+     *
+     * @param queries the queries to be answered
+     * @param resultNumber the number of results to be returned per query
+     * @param executor the executor on which the queries are fanned out; it is not shut down by this method
+     * @throws IOException if any of the queries fails
+     * @return a map between the query ids and their paragraph ids, ordered by query id
+     */
+    public SortedMap<String, List<String>> answerQueries(Collection<TRECQuery> queries, int resultNumber, ExecutorService executor) throws IOException {
+        /* Submit everything first, then gather the results in query id order */
+        SortedMap<String, Future<List<String>>> pending = new TreeMap<>();
+
+        for (TRECQuery trecQuery : queries)
+            pending.put(
+                    trecQuery.getQueryId(),
+                    executor.submit(() -> answerQuery(trecQuery.getPlainQuery(), resultNumber))
+            );
+
+        SortedMap<String, List<String>> res = new TreeMap<>();
+
+        try {
+            for (Map.Entry<String, Future<List<String>>> entry : pending.entrySet())
+                res.put(entry.getKey(), entry.getValue().get());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for the batch results", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException)
+                throw (IOException) e.getCause();
+
+            throw new IOException("Unable to answer a query of the batch", e.getCause());
+        }
+
+        return res;
+    }
+
+    /**
+     * Answer a batch of queries concurrently, and stream their results into a run file as each query finishes; at most
+     * DEFAULT_MAX_IN_FLIGHT queries are in flight at once
+     *
+     * @param queries the queries to be answered
+     * @param resultNumber the number of results to be returned per query
+     * @param executor the executor on which the queries are fanned out; it is not shut down by this method
+     * @param runFile the sink of the results; it is not closed by this method
+     * @throws IOException if any of the queries fails, or if the results cannot be written
+     */
+    public void answerQueries(Collection<TRECQuery> queries, int resultNumber, ExecutorService executor, RunFileWriter runFile) throws IOException {
+        answerQueries(queries, resultNumber, executor, runFile, DEFAULT_MAX_IN_FLIGHT);
+    }
+
+    /**
+     * Answer a batch of queries concurrently, and stream their results into a run file as each query finishes. Unlike
+     * the other batch methods, the results are not accumulated, and the queries are submitted as earlier ones finish:
+     * no more than maxInFlight queries hold a searcher and their hits at once, hence the memory use does not grow
+     * with the batch, whatever the executor (e.g. one virtual thread per task).
+     *
+     * On the first failure, no more queries are submitted, and the queries in flight skip their search or their write;
+     * the method only returns once none of them can write to the run file anymore. The threads in flight are not
+     * interrupted, as an interrupt would close the channels of an NIOFSDirectory.
+     *
+     * @param queries the queries to be answered
+     * @param resultNumber the number of results to be returned per query
+     * @param executor the executor on which the queries are fanned out; it is not shut down by this method
+     * @param runFile the sink of the results; it is not closed by this method
+     * @param maxInFlight the maximal number of queries submitted and not finished
+     * @throws IOException if any of the queries fails, or if the results cannot be written
+     */
+    public void answerQueries(Collection<TRECQuery> queries, int resultNumber, ExecutorService executor, RunFileWriter runFile, int maxInFlight) throws IOException {
+        Semaphore permits = new Semaphore(maxInFlight);
+        AtomicReference<Throwable> failure = new AtomicReference<>();
+
+        try {
+            for (TRECQuery trecQuery : queries) {
+                permits.acquire();
+
+                if (failure.get() != null) {
+                    permits.release();
+                    break;
+                }
+
+                try {
+                    executor.execute(() -> {
+                        try {
+                            if (failure.get() != null)
+                                return;
+
+                            /* The paragraph ids are resolved by the sink, before the searcher is released */
+                            try (Stream<SearchHit> hits = searchHits(trecQuery.getPlainQuery(), resultNumber)) {
+                                List<SearchHit> queryHits = hits.collect(Collectors.toList());
+
+                                if (failure.get() == null)
+                                    runFile.write(trecQuery.getQueryId(), queryHits);
+                            }
+                        } catch (Throwable e) {
+                            failure.compareAndSet(null, e);
+                        } finally {
+                            permits.release();
+                        }
+                    });
+                } catch (RejectedExecutionException e) {
+                    permits.release();
+                    failure.compareAndSet(null, e);
+                }
+            }
+        } catch (InterruptedException e) {
+            failure.compareAndSet(null, e);
+        }
+
+        /* Wait for the queries in flight, such that nothing is written to the run file once this method returns */
+        permits.acquireUninterruptibly(maxInFlight);
+
+        Throwable cause = failure.get();
+
+        if (cause == null)
+            return;
+
+        if (cause instanceof InterruptedException) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while answering the batch", cause);
+        }
+
+        if (cause instanceof IOException)
+            throw (IOException) cause;
+
+        if (cause instanceof UncheckedIOException)
+            throw ((UncheckedIOException) cause).getCause();
+
+        throw new IOException("Unable to answer a query of the batch", cause);
+    }
+
+    /**
+     * Answer a batch of queries concurrently, on a fixed thread pool which lives for the duration of the batch
+     *
+     * @param queries the queries to be answered
+     * @param resultNumber the number of results to be returned per query
+     * @param threadNumber the number of threads which answer queries
+     * @throws IOException if any of the queries fails
+     * @return a map between the query ids and their paragraph ids, ordered by query id
+     */
+    public SortedMap<String, List<String>> answerQueries(Collection<TRECQuery> queries, int resultNumber, int threadNumber) throws IOException {
+        return answerQueries(queries, resultNumber, QueryExecutors.Backend.PLATFORM, threadNumber);
+    }
+
+    /**
+     * Answer a batch of queries concurrently, on an executor which lives for the duration of the batch. With the
+     * VIRTUAL backend, each query runs on its own virtual thread (JDK 21+), and the thread number only applies if the
+     * JVM falls back to a fixed pool.
+     *
+     * @param queries the queries to be answered
+     * @param resultNumber the number of results to be returned per query
+     * @param backend the kind of threads which answer the queries
+     * @param threadNumber the number of platform threads which answer queries
+     * @throws IOException if any of the queries fails
+     * @return a map between the query ids and their paragraph ids, ordered by query id
+     */
+    public SortedMap<String, List<String>> answerQueries(Collection<TRECQuery> queries, int resultNumber, QueryExecutors.Backend backend, int threadNumber) throws IOException {
+        ExecutorService executor = QueryExecutors.newExecutor(backend, threadNumber);
+
+        try {
+            return answerQueries(queries, resultNumber, executor);
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
     private IndexSearcher createSearcher() throws IOException {
-        return new IndexSearcher(DirectoryReader.open(FSDirectory.open(FileSystems.getDefault().getPath(pathToIndex))));
+        if (shardPaths == null)
+            return newSearcherFor(openReader(FileSystems.getDefault().getPath(pathToIndex)));
+
+        if (directoryMode == DirectoryMode.OFF_HEAP)
+            throw new IllegalStateException("The OFF_HEAP directory mode does not support shards");
+
+        /* The MultiReader owns the shard readers, and closes them with itself */
+        IndexReader[] shardReaders = new IndexReader[shardPaths.size()];
+
+        try {
+            for (int i = 0; i < shardReaders.length; ++i)
+                shardReaders[i] = openReader(FileSystems.getDefault().getPath(shardPaths.get(i)));
+        } catch (IOException e) {
+            for (IndexReader shardReader : shardReaders)
+                if (shardReader != null)
+                    shardReader.close();
+
+            throw e;
+        }
+
+        return newSearcherFor(new MultiReader(shardReaders, true));
+    }
+
+    /**
+     * Create a searcher over a reader, scoring segment slices in parallel if a search executor is in place
+     *
+     * @param reader the reader
+     * @return the searcher, with the default similarity
+     */
+    private IndexSearcher newSearcherFor(IndexReader reader) {
+        if (searchExecutor != null)
+            return SlicedIndexSearcher.create(
+                    reader,
+                    searchExecutor,
+                    slicingPolicy == null && shardPaths != null ? SlicedIndexSearcher.SlicingPolicy.perShard() : slicingPolicy
+            );
+
+        return new IndexSearcher(reader);
+    }
+
+    /**
+     * Get the searcher of the solver; in near-real-time mode, this acquires a reference on the current searcher, which
+     * must be given back through releaseSearcher
+     *
+     * @return the searcher
+     */
+    private IndexSearcher acquireSearcher() throws IOException {
+        return searcherManager != null ? searcherManager.acquire() : searcher;
+    }
+
+    /**
+     * Give back a searcher obtained through acquireSearcher
+     *
+     * @param acquired the searcher
+     */
+    private void releaseSearcher(IndexSearcher acquired) throws IOException {
+        if (searcherManager != null)
+            searcherManager.release(acquired);
+    }
+
+    /**
+     * Get a searcher with the given similarity, over the reader of a searcher of the solver. The searcher is parallel
+     * (sliced) only if the base searcher is, such that a sequential search stays sequential in both passes. Searchers
+     * are cheap, but they are kept per similarity (as identified by its toString) and parallelism, such that repeated
+     * requests reuse them.
+     *
+     * @param baseSearcher the searcher whose reader is searched, and whose parallelism is kept
+     * @param similarity the similarity
+     * @return the searcher
+     */
+    private IndexSearcher searcherFor(IndexSearcher baseSearcher, Similarity similarity) {
+        IndexReader reader = baseSearcher.getIndexReader();
+        boolean parallel = baseSearcher instanceof SlicedIndexSearcher;
+        String key = (parallel ? "parallel|" : "sequential|") + similarity;
+        IndexSearcher similaritySearcher = similaritySearchers.get(key);
+
+        if (similaritySearcher == null || similaritySearcher.getIndexReader() != reader) {
+            similaritySearcher = parallel ? newSearcherFor(reader) : new IndexSearcher(reader);
+            similaritySearcher.setSimilarity(similarity);
+            similaritySearchers.put(key, similaritySearcher);
+        }
+
+        return similaritySearcher;
+    }
+
+    /**
+     * Compute the result cache key of a query: everything which determines its results, apart from the index
+     * (the cache is invalidated when the reader changes)
+     *
+     * @param searcher the searcher on which the query is run
+     * @param expander the query expanding strategy
+     * @param analyzedQuery the analyzed query terms
+     * @param resultNumber the number of results to be returned
+     * @return the key
+     */
+    private String cacheKey(IndexSearcher searcher, Expander expander, String[] analyzedQuery, int resultNumber) {
+        return String.join(" ", analyzedQuery) +
+                '|' + resultNumber +
+                '|' + searcher.getSimilarity(true) +
+                '|' + secondPassSimilarity +
+                '|' + expander +
+                '|' + queryPlanner +
+                '|' + expansionPredictor;
+    }
+
+    /**
+     * Open a reader over the index directory; if it fails, the directory (and its in-memory copy) is released
+     *
+     * @return the index reader
+     * @throws IOException if the directory or the reader cannot be opened
+     */
+    private DirectoryReader openReader(Path indexPath) throws IOException {
+        Directory directory = openDirectory(indexPath);
+
+        try {
+            return DirectoryReader.open(directory);
+        } catch (IOException | RuntimeException e) {
+            try {
+                directory.close();
+                deleteInMemoryCopy();
+            } catch (IOException closeFailure) {
+                e.addSuppressed(closeFailure);
+            }
+
+            throw e;
+        }
+    }
+
+    /**
+     * Open the index directory, as specified by the directory mode
+     *
+     * @return the index directory
+     * @throws IOException if the directory cannot be opened
+     */
+    private Directory openDirectory(Path indexPath) throws IOException {
+        switch (directoryMode) {
+            case MMAP:
+                MMapDirectory directory = new MMapDirectory(indexPath);
+                directory.setPreload(preload);
+                return directory;
+            case RAM:
+                try (FSDirectory onDisk = FSDirectory.open(indexPath)) {
+                    return new RAMDirectory(onDisk, IOContext.READONCE);
+                }
+            case OFF_HEAP:
+                inMemoryCopy = Files.createTempDirectory(FileSystems.getDefault().getPath(offHeapRoot), "trec-car-index");
+
+                try (DirectoryStream<Path> files = Files.newDirectoryStream(indexPath)) {
+                    for (Path file : files)
+                        if (Files.isRegularFile(file) && !file.getFileName().toString().equals("write.lock"))
+                            Files.copy(file, inMemoryCopy.resolve(file.getFileName()));
+                } catch (IOException e) {
+                    /* A partial copy would hold on to the RAM of the file system */
+                    try {
+                        deleteInMemoryCopy();
+                    } catch (IOException deleteFailure) {
+                        e.addSuppressed(deleteFailure);
+                    }
+
+                    throw e;
+                }
+
+                MMapDirectory inMemory = new MMapDirectory(inMemoryCopy);
+                inMemory.setPreload(true);
+                return inMemory;
+            default:
+                return FSDirectory.open(indexPath);
+        }
     }
 
     /**
@@ -319,7 +1420,7 @@ public class QuerySolver {
      * @param query the query to be reparsed
      * @return the query's (already analyzed) tokens
      */
-    private String[] unParseQuery(Query query) {
+    public static String[] unParseQuery(Query query) {
         /* Let's formulate it nicely using streaming and 'functional' programming */
         return Arrays
                 .stream(query.toString().split("\\s+"))
@@ -332,4 +1433,17 @@ public class QuerySolver {
                 .filter((String element) -> !element.equals(""))
                 .toArray(String[]::new);
     }
+
+    /**
+     * The final results of a query, and the time budget fallback which produced them (null if none)
+     */
+    private static class Retrieval {
+        private final TopDocs topDocs;
+        private final Fallback fallback;
+
+        private Retrieval(TopDocs topDocs, Fallback fallback) {
+            this.topDocs = topDocs;
+            this.fallback = fallback;
+        }
+    }
 }
@@ -0,0 +1,223 @@
+package query;
+
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.search.TopDocs;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A bounded cache of query results. Entries are evicted in least recently used order once the cache is full, and
+ * expire after a time to live. The cached documents are Lucene doc ids, hence they are only valid for the reader they
+ * were computed on; the whole cache is invalidated as soon as it is queried with a different reader.
+ *
+ * All methods are synchronized, such that the cache can be shared by concurrent queries.
+ */
+public class ResultCache {
+    /**
+     * Rough size of a ScoreDoc in memory (object header, three fields and the array reference)
+     */
+    private static final long SCORE_DOC_BYTES = 32;
+    /**
+     * Rough size of a cache entry, without its key and results
+     */
+    private static final long ENTRY_BYTES = 96;
+
+    /**
+     * The maximal number of entries
+     */
+    private final int maxEntries;
+    /**
+     * The time to live of an entry, in milliseconds; 0 or less disables the expiry
+     */
+    private final long ttlMillis;
+    /**
+     * The entries, in access order
+     */
+    private final LinkedHashMap<String, Entry> entries;
+    /**
+     * The identity of the reader the cached results belong to
+     */
+    private Object readerKey;
+
+    /* Counters */
+    private long hits;
+    private long misses;
+    private long evictions;
+    private long expirations;
+    private long invalidations;
+    private long footprintBytes;
+
+    public ResultCache(int maxEntries, long ttlMillis) {
+        this.maxEntries = maxEntries;
+        this.ttlMillis = ttlMillis;
+        this.entries = new LinkedHashMap<>(16, 0.75f, true);
+    }
+
+    /**
+     * Look up the results of a query
+     *
+     * @param reader the reader the query is run against
+     * @param key the key of the query (see QuerySolver)
+     * @return the cached results, or null if there are none
+     */
+    public synchronized TopDocs get(IndexReader reader, String key) {
+        checkReader(reader);
+
+        Entry entry = entries.get(key);
+
+        if (entry != null && isExpired(entry)) {
+            remove(key);
+            ++expirations;
+            entry = null;
+        }
+
+        if (entry == null) {
+            ++misses;
+            return null;
+        }
+
+        ++hits;
+        return entry.topDocs;
+    }
+
+    /**
+     * Store the results of a query
+     *
+     * @param reader the reader the query was run against
+     * @param key the key of the query (see QuerySolver)
+     * @param topDocs the results
+     */
+    public synchronized void put(IndexReader reader, String key, TopDocs topDocs) {
+        checkReader(reader);
+
+        remove(key);
+
+        Entry entry = new Entry(topDocs, System.currentTimeMillis(), estimateBytes(key, topDocs));
+        entries.put(key, entry);
+        footprintBytes += entry.bytes;
+
+        /* Evict the expired entries first, then the least recently used ones */
+        if (entries.size() > maxEntries && ttlMillis > 0) {
+            Iterator<Map.Entry<String, Entry>> iterator = entries.entrySet().iterator();
+
+            while (iterator.hasNext()) {
+                Entry candidate = iterator.next().getValue();
+
+                if (isExpired(candidate)) {
+                    iterator.remove();
+                    footprintBytes -= candidate.bytes;
+                    ++expirations;
+                }
+            }
+        }
+
+        while (entries.size() > maxEntries) {
+            Iterator<Map.Entry<String, Entry>> iterator = entries.entrySet().iterator();
+            footprintBytes -= iterator.next().getValue().bytes;
+            iterator.remove();
+            ++evictions;
+        }
+    }
+
+    /**
+     * Drop all the entries
+     */
+    public synchronized void clear() {
+        entries.clear();
+        footprintBytes = 0;
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    public synchronized double getHitRate() {
+        return hits + misses == 0 ? 0.0 : (double) hits / (double) (hits + misses);
+    }
+
+    public synchronized long getEvictions() {
+        return evictions;
+    }
+
+    public synchronized long getExpirations() {
+        return expirations;
+    }
+
+    public synchronized long getInvalidations() {
+        return invalidations;
+    }
+
+    /**
+     * @return the estimated memory held by the entries, in bytes
+     */
+    public synchronized long getFootprintBytes() {
+        return footprintBytes;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "ResultCache{" +
+                "entries=" + entries.size() +
+                ", hitRate=" + getHitRate() +
+                ", hits=" + hits +
+                ", misses=" + misses +
+                ", evictions=" + evictions +
+                ", expirations=" + expirations +
+                ", invalidations=" + invalidations +
+                ", footprintBytes=" + footprintBytes +
+                '}';
+    }
+
+    /**
+     * Invalidate the cache if the reader is not the one the entries were computed on
+     */
+    private void checkReader(IndexReader reader) {
+        IndexReader.CacheHelper cacheHelper = reader.getReaderCacheHelper();
+        Object key = cacheHelper != null ? cacheHelper.getKey() : reader;
+
+        if (key != readerKey) {
+            if (!entries.isEmpty())
+                ++invalidations;
+
+            clear();
+            readerKey = key;
+        }
+    }
+
+    private boolean isExpired(Entry entry) {
+        return ttlMillis > 0 && System.currentTimeMillis() - entry.createdAt > ttlMillis;
+    }
+
+    private void remove(String key) {
+        Entry removed = entries.remove(key);
+
+        if (removed != null)
+            footprintBytes -= removed.bytes;
+    }
+
+    private static long estimateBytes(String key, TopDocs topDocs) {
+        return ENTRY_BYTES + 2L * key.length() + SCORE_DOC_BYTES * topDocs.scoreDocs.length;
+    }
+
+    private static class Entry {
+        private final TopDocs topDocs;
+        private final long createdAt;
+        private final long bytes;
+
+        private Entry(TopDocs topDocs, long createdAt, long bytes) {
+            this.topDocs = topDocs;
+            this.createdAt = createdAt;
+            this.bytes = bytes;
+        }
+    }
+}
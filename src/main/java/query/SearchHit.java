@@ -0,0 +1,100 @@
+package query;
+
+import org.apache.lucene.document.Document;
+import org.apache.lucene.search.IndexSearcher;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.Collections;
+
+/**
+ * A scored hit of a query. Only the Lucene doc id and the score are known upfront; the paragraph id and the text are
+ * loaded from the stored fields the first time they are asked for, and only the requested field is loaded.
+ *
+ * The getters throw an UncheckedIOException if the stored fields cannot be read, such that hits can be consumed in
+ * streams.
+ */
+public class SearchHit {
+    /**
+     * The searcher which produced the hit; used for loading the stored fields
+     */
+    private final IndexSearcher searcher;
+    /**
+     * The Lucene doc id
+     */
+    private final int docId;
+    /**
+     * The retrieval score
+     */
+    private final float score;
+    /**
+     * The name of the id field
+     */
+    private final String idField;
+    /**
+     * The name of the text field
+     */
+    private final String targetField;
+    /**
+     * The paragraph id, once loaded
+     */
+    private String paraId;
+    /**
+     * The paragraph text, once loaded
+     */
+    private String text;
+
+    public SearchHit(IndexSearcher searcher, int docId, float score, String idField, String targetField) {
+        this.searcher = searcher;
+        this.docId = docId;
+        this.score = score;
+        this.idField = idField;
+        this.targetField = targetField;
+    }
+
+    public int getDocId() {
+        return docId;
+    }
+
+    public float getScore() {
+        return score;
+    }
+
+    /**
+     * @return the paragraph id, loaded on the first call
+     */
+    public String getParaId() {
+        if (paraId == null)
+            paraId = loadField(idField);
+
+        return paraId;
+    }
+
+    /**
+     * @return the paragraph text, loaded on the first call
+     */
+    public String getText() {
+        if (text == null)
+            text = loadField(targetField);
+
+        return text;
+    }
+
+    private String loadField(String field) {
+        try {
+            Document doc = searcher.doc(docId, Collections.singleton(field));
+            return doc.get(field);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Unable to load field '" + field + "' of document " + docId, e);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "SearchHit{" +
+                "docId=" + docId +
+                ", score=" + score +
+                ", paraId='" + paraId + '\'' +
+                '}';
+    }
+}
@@ -0,0 +1,129 @@
+package query;
+
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.search.IndexSearcher;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+
+/**
+ * An IndexSearcher which scores slices of segments in parallel, on an executor. The way segments are grouped into
+ * slices is given by a SlicingPolicy.
+ *
+ * Lucene computes the slices from within the IndexSearcher constructor, i.e. before any field of a subclass is set.
+ * The policy is therefore handed over through a thread local, which is only set while the searcher is constructed.
+ */
+public class SlicedIndexSearcher extends IndexSearcher {
+    /**
+     * Groups the leaves of a reader into slices; each slice is scored by a single task
+     */
+    public interface SlicingPolicy {
+        LeafSlice[] slice(List<LeafReaderContext> leaves);
+
+        /**
+         * One slice per segment (this is Lucene's default behaviour)
+         */
+        static SlicingPolicy perSegment() {
+            return (List<LeafReaderContext> leaves) -> {
+                LeafSlice[] slices = new LeafSlice[leaves.size()];
+
+                for (int i = 0; i < slices.length; ++i)
+                    slices[i] = new LeafSlice(leaves.get(i));
+
+                return slices;
+            };
+        }
+
+        /**
+         * One slice per shard, for a MultiReader over the readers of the shards: the segments are grouped by the
+         * (composite) reader they belong to, such that each shard is scored by its own task. The top documents of the
+         * shards are merged by score by the searcher; as the term statistics are taken from the MultiReader, they are
+         * global, and the scores of the shards are comparable.
+         */
+        static SlicingPolicy perShard() {
+            return (List<LeafReaderContext> leaves) -> {
+                Map<Object, List<LeafReaderContext>> shards = new LinkedHashMap<>();
+
+                for (LeafReaderContext leaf : leaves)
+                    shards.computeIfAbsent(leaf.parent, (Object parent) -> new ArrayList<>()).add(leaf);
+
+                LeafSlice[] slices = new LeafSlice[shards.size()];
+                int i = 0;
+
+                for (List<LeafReaderContext> shardLeaves : shards.values())
+                    slices[i++] = new LeafSlice(shardLeaves.toArray(new LeafReaderContext[0]));
+
+                return slices;
+            };
+        }
+
+        /**
+         * Pack the segments, largest first, into slices holding at most maxDocsPerSlice documents and at most
+         * maxSegmentsPerSlice segments. A segment larger than maxDocsPerSlice gets a slice of its own.
+         */
+        static SlicingPolicy bounded(int maxDocsPerSlice, int maxSegmentsPerSlice) {
+            return (List<LeafReaderContext> leaves) -> {
+                List<LeafReaderContext> sortedLeaves = new ArrayList<>(leaves);
+                sortedLeaves.sort((LeafReaderContext l1, LeafReaderContext l2) -> Integer.compare(l2.reader().maxDoc(), l1.reader().maxDoc()));
+
+                List<LeafSlice> slices = new ArrayList<>();
+                List<LeafReaderContext> group = new ArrayList<>();
+                long groupDocs = 0;
+
+                for (LeafReaderContext leaf : sortedLeaves) {
+                    if (!group.isEmpty() && (groupDocs + leaf.reader().maxDoc() > maxDocsPerSlice || group.size() >= maxSegmentsPerSlice)) {
+                        slices.add(new LeafSlice(group.toArray(new LeafReaderContext[0])));
+                        group.clear();
+                        groupDocs = 0;
+                    }
+
+                    group.add(leaf);
+                    groupDocs += leaf.reader().maxDoc();
+                }
+
+                if (!group.isEmpty())
+                    slices.add(new LeafSlice(group.toArray(new LeafReaderContext[0])));
+
+                return slices.toArray(new LeafSlice[0]);
+            };
+        }
+    }
+
+    /**
+     * The policy of the searcher which is currently being constructed on this thread
+     */
+    private static final ThreadLocal<SlicingPolicy> PENDING_POLICY = new ThreadLocal<>();
+
+    private SlicedIndexSearcher(IndexReader reader, ExecutorService executor) {
+        super(reader, executor);
+    }
+
+    /**
+     * Create a searcher which scores the slices on the given executor
+     *
+     * @param reader the reader to be searched
+     * @param executor the executor on which the slices are scored
+     * @param policy the policy which groups the segments into slices
+     * @return the searcher
+     */
+    public static SlicedIndexSearcher create(IndexReader reader, ExecutorService executor, SlicingPolicy policy) {
+        PENDING_POLICY.set(policy);
+
+        try {
+            return new SlicedIndexSearcher(reader, executor);
+        } finally {
+            PENDING_POLICY.remove();
+        }
+    }
+
+    @Override
+    protected LeafSlice[] slices(List<LeafReaderContext> leaves) {
+        SlicingPolicy policy = PENDING_POLICY.get();
+
+        return policy == null ? super.slices(leaves) : policy.slice(leaves);
+    }
+}
@@ -0,0 +1,444 @@
+package query.expansion;
+
+import org.apache.lucene.document.Document;
+import org.apache.lucene.index.FilterLeafReader;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.LeafReader;
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.index.SegmentCommitInfo;
+import org.apache.lucene.index.SegmentReader;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.search.BooleanClause;
+import org.apache.lucene.search.BooleanQuery;
+import org.apache.lucene.search.BoostQuery;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.ScoreDoc;
+import org.apache.lucene.search.TermQuery;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Caches the expansions of another expander. An expansion only depends on the analyzed query, the feedback documents
+ * (in rank order) and the parameters of the expander, hence e.g. a sweep over the similarity of the second pass
+ * recomputes the same expansions over and over.
+ *
+ * The key of an expansion is made of:
+ *
+ *     the toString of the delegate, which is expected to list all its parameters (as the expanders of this repo do,
+ *     including their query builder and the collection statistics or centroid they use)
+ *     the analyzed query terms
+ *     the feedback documents: their doc ids and the identity of the segments of the reader
+ *
+ * The value is the weighted term list of the expanded query, from which an equivalent query is rebuilt; only queries
+ * made of term clauses (possibly boosted, within a flat BooleanQuery) can be cached, other queries are passed through.
+ * The entries are evicted in least recently used order once their estimated footprint exceeds the bound.
+ *
+ * The identity of a reader is a digest of the ids of its segments (random, and unique to each segment of each index)
+ * and of their deletion and doc values generations: the same doc ids of two readers with the same identity are the
+ * same documents. Hence a cache file (see load and save) can be loaded whatever index is searched, its entries only
+ * match the segments they were computed on. Readers which are not made of segments are not cached.
+ *
+ * The Document path is passed through to the delegate, uncached: the documents neither identify the index they come
+ * from (whose statistics e.g. the smoothing of RM and the COLLECTION IDF of Rocchio depend on), nor reliably themselves.
+ * The QuerySolver always goes through the doc id path.
+ */
+public class CachingExpander implements FeedbackExpander {
+    private static final int MAGIC = 0x45584341;
+    private static final int VERSION = 2;
+
+    /**
+     * Rough size of a cache entry, without its key and terms (map entry, entry object, arrays)
+     */
+    private static final long ENTRY_BYTES = 128;
+    /**
+     * Rough size of a term of an entry, without its characters (Term object, strings, array slots)
+     */
+    private static final long TERM_BYTES = 96;
+
+    /**
+     * The expander whose expansions are cached
+     */
+    private final Expander delegate;
+    /**
+     * The maximal estimated footprint of the entries, in bytes
+     */
+    private final long maxBytes;
+    /**
+     * The entries, in access order
+     */
+    private final LinkedHashMap<String, Entry> entries;
+
+    /* Counters */
+    private long hits;
+    private long misses;
+    private long evictions;
+    private long uncacheable;
+    private long footprintBytes;
+
+    public CachingExpander(Expander delegate, long maxBytes) {
+        this.delegate = delegate;
+        this.maxBytes = maxBytes;
+        this.entries = new LinkedHashMap<>(16, 0.75f, true);
+    }
+
+    @Override
+    public Query expand(String[] query, List<Document> relevantDocuments) throws IOException {
+        return delegate.expand(query, relevantDocuments);
+    }
+
+    @Override
+    public Query expand(String[] query, ScoreDoc[] feedbackDocs, IndexReader reader) throws IOException {
+        String readerIdentity = readerIdentity(reader);
+
+        if (readerIdentity == null)
+            return expandUncached(query, feedbackDocs, reader);
+
+        StringBuilder key = newKey(query).append("reader:").append(readerIdentity).append(" docs:");
+
+        for (ScoreDoc scoreDoc : feedbackDocs)
+            key.append(scoreDoc.doc).append(' ');
+
+        Query cached = lookUp(key.toString());
+
+        if (cached != null)
+            return cached;
+
+        return store(key.toString(), expandUncached(query, feedbackDocs, reader));
+    }
+
+    /**
+     * Load the entries of a cache file, written by save; the current entries are kept
+     *
+     * @param file the cache file
+     * @throws IOException if the file cannot be read, or is not a cache file
+     */
+    public void load(Path file) throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file)))) {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION)
+                throw new IOException("Not an expansion cache (or an unsupported version): " + file);
+
+            int size = in.readInt();
+
+            for (int i = 0; i < size; ++i) {
+                byte[] keyBytes = new byte[in.readInt()];
+                in.readFully(keyBytes);
+
+                int termCount = in.readInt();
+                Term[] terms = new Term[termCount];
+                float[] weights = new float[termCount];
+                BooleanClause.Occur[] occurs = new BooleanClause.Occur[termCount];
+
+                for (int t = 0; t < termCount; ++t) {
+                    terms[t] = new Term(in.readUTF(), in.readUTF());
+                    weights[t] = in.readFloat();
+                    occurs[t] = BooleanClause.Occur.values()[in.readByte()];
+                }
+
+                put(new String(keyBytes, StandardCharsets.UTF_8), new Entry(terms, weights, occurs));
+            }
+        }
+
+        System.out.println("> Loaded the expansion cache " + file + ": " + size() + " entries");
+    }
+
+    /**
+     * Write the entries to a cache file, from the least to the most recently used
+     *
+     * @param file the cache file; an existing file is overwritten
+     * @throws IOException if the file cannot be written
+     */
+    public synchronized void save(Path file) throws IOException {
+        if (file.getParent() != null)
+            Files.createDirectories(file.getParent());
+
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(file)))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(entries.size());
+
+            for (Map.Entry<String, Entry> entry : entries.entrySet()) {
+                byte[] keyBytes = entry.getKey().getBytes(StandardCharsets.UTF_8);
+                out.writeInt(keyBytes.length);
+                out.write(keyBytes);
+
+                Entry value = entry.getValue();
+                out.writeInt(value.terms.length);
+
+                for (int t = 0; t < value.terms.length; ++t) {
+                    out.writeUTF(value.terms[t].field());
+                    out.writeUTF(value.terms[t].text());
+                    out.writeFloat(value.weights[t]);
+                    out.writeByte(value.occurs[t].ordinal());
+                }
+            }
+        }
+    }
+
+    /**
+     * Drop all the entries
+     */
+    public synchronized void clear() {
+        entries.clear();
+        footprintBytes = 0;
+    }
+
+    public Expander getDelegate() {
+        return delegate;
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    public synchronized double getHitRate() {
+        return hits + misses == 0 ? 0.0 : (double) hits / (double) (hits + misses);
+    }
+
+    public synchronized long getEvictions() {
+        return evictions;
+    }
+
+    /**
+     * @return the number of expansions which could not be cached, as they were not made of term clauses
+     */
+    public synchronized long getUncacheable() {
+        return uncacheable;
+    }
+
+    /**
+     * @return the estimated memory held by the entries, in bytes
+     */
+    public synchronized long getFootprintBytes() {
+        return footprintBytes;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "CachingExpander{" +
+                "delegate=" + delegate +
+                ", entries=" + entries.size() +
+                ", hitRate=" + getHitRate() +
+                ", hits=" + hits +
+                ", misses=" + misses +
+                ", evictions=" + evictions +
+                ", uncacheable=" + uncacheable +
+                ", footprintBytes=" + footprintBytes +
+                ", maxBytes=" + maxBytes +
+                '}';
+    }
+
+    /**
+     * Expand through the delegate; if it only supports the Document path, the feedback documents are read from the
+     * reader, as the QuerySolver would do
+     */
+    private Query expandUncached(String[] query, ScoreDoc[] feedbackDocs, IndexReader reader) throws IOException {
+        if (delegate instanceof FeedbackExpander)
+            return ((FeedbackExpander) delegate).expand(query, feedbackDocs, reader);
+
+        List<Document> relevantDocuments = new ArrayList<>();
+
+        for (ScoreDoc scoreDoc : feedbackDocs)
+            relevantDocuments.add(reader.document(scoreDoc.doc));
+
+        return delegate.expand(query, relevantDocuments);
+    }
+
+    /**
+     * Identify the content of a reader, across processes
+     *
+     * @return the digest of the identities of its segments, or null if it is not made of segments
+     */
+    private static String readerIdentity(IndexReader reader) {
+        MessageDigest digest;
+
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            /* Every JVM provides SHA-256 */
+            throw new IllegalStateException(e);
+        }
+
+        ByteBuffer generations = ByteBuffer.allocate(3 * Long.BYTES);
+
+        for (LeafReaderContext leaf : reader.leaves()) {
+            LeafReader leafReader = FilterLeafReader.unwrap(leaf.reader());
+
+            if (!(leafReader instanceof SegmentReader))
+                return null;
+
+            SegmentCommitInfo segment = ((SegmentReader) leafReader).getSegmentInfo();
+            byte[] segmentId = segment.info.getId();
+
+            if (segmentId == null)
+                return null;
+
+            generations.clear();
+            generations.putLong(segment.getDelGen()).putLong(segment.getDocValuesGen()).putLong(segment.getFieldInfosGen());
+
+            digest.update(segmentId);
+            digest.update(generations.array());
+        }
+
+        StringBuilder identity = new StringBuilder();
+
+        for (byte b : digest.digest())
+            identity.append(String.format("%02x", b));
+
+        return identity.toString();
+    }
+
+    private StringBuilder newKey(String[] query) {
+        return new StringBuilder()
+                .append(delegate).append('\n')
+                .append("query:").append(String.join(" ", query)).append('\n');
+    }
+
+    private synchronized Query lookUp(String key) {
+        Entry entry = entries.get(key);
+
+        if (entry == null) {
+            ++misses;
+            return null;
+        }
+
+        ++hits;
+        return entry.toQuery();
+    }
+
+    /**
+     * Cache an expansion, if it is made of term clauses
+     *
+     * @return the expansion
+     */
+    private Query store(String key, Query query) {
+        Entry entry = Entry.of(query);
+
+        if (entry == null) {
+            synchronized (this) {
+                ++uncacheable;
+            }
+
+            return query;
+        }
+
+        put(key, entry);
+        return query;
+    }
+
+    private synchronized void put(String key, Entry entry) {
+        /* Another thread may have expanded the same query meanwhile */
+        Entry previous = entries.remove(key);
+
+        if (previous != null)
+            footprintBytes -= previous.bytes;
+
+        entry.bytes = estimateBytes(key, entry);
+        entries.put(key, entry);
+        footprintBytes += entry.bytes;
+
+        while (footprintBytes > maxBytes && !entries.isEmpty()) {
+            Iterator<Map.Entry<String, Entry>> iterator = entries.entrySet().iterator();
+            footprintBytes -= iterator.next().getValue().bytes;
+            iterator.remove();
+            ++evictions;
+        }
+    }
+
+    private static long estimateBytes(String key, Entry entry) {
+        long bytes = ENTRY_BYTES + 2L * key.length();
+
+        for (Term term : entry.terms)
+            bytes += TERM_BYTES + 2L * (term.field().length() + term.text().length());
+
+        return bytes;
+    }
+
+    /**
+     * The weighted term list of an expanded query
+     */
+    private static class Entry {
+        private final Term[] terms;
+        private final float[] weights;
+        private final BooleanClause.Occur[] occurs;
+        private long bytes;
+
+        private Entry(Term[] terms, float[] weights, BooleanClause.Occur[] occurs) {
+            this.terms = terms;
+            this.weights = weights;
+            this.occurs = occurs;
+        }
+
+        /**
+         * @return the term list of the query, or null if it is not made of (boosted) term clauses
+         */
+        private static Entry of(Query query) {
+            List<BooleanClause> clauses = new ArrayList<>();
+
+            if (query instanceof BooleanQuery) {
+                if (((BooleanQuery) query).getMinimumNumberShouldMatch() != 0)
+                    return null;
+
+                clauses.addAll(((BooleanQuery) query).clauses());
+            } else {
+                /* A lone clause is rebuilt as a BooleanQuery of one clause, which matches and scores the same */
+                clauses.add(new BooleanClause(query, BooleanClause.Occur.SHOULD));
+            }
+
+            Term[] terms = new Term[clauses.size()];
+            float[] weights = new float[clauses.size()];
+            BooleanClause.Occur[] occurs = new BooleanClause.Occur[clauses.size()];
+
+            for (int i = 0; i < clauses.size(); ++i) {
+                Query clause = clauses.get(i).getQuery();
+                weights[i] = 1.0f;
+
+                while (clause instanceof BoostQuery) {
+                    weights[i] *= ((BoostQuery) clause).getBoost();
+                    clause = ((BoostQuery) clause).getQuery();
+                }
+
+                if (!(clause instanceof TermQuery))
+                    return null;
+
+                terms[i] = ((TermQuery) clause).getTerm();
+                occurs[i] = clauses.get(i).getOccur();
+            }
+
+            return new Entry(terms, weights, occurs);
+        }
+
+        private Query toQuery() {
+            BooleanQuery.Builder builder = new BooleanQuery.Builder();
+
+            for (int i = 0; i < terms.length; ++i) {
+                Query clause = new TermQuery(terms[i]);
+                builder.add(weights[i] == 1.0f ? clause : new BoostQuery(clause, weights[i]), occurs[i]);
+            }
+
+            return builder.build();
+        }
+    }
+}
@@ -0,0 +1,27 @@
+package query.expansion;
+
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.ScoreDoc;
+
+import java.io.IOException;
+
+/**
+ * An expander which reads the feedback documents straight from the live index, by their doc ids, instead of receiving
+ * copies of their stored fields. Implementations read term vectors or term statistics of the reader, and do not need
+ * to re-analyze or re-index the feedback documents.
+ *
+ * The QuerySolver prefers this contract over the Document based one, whenever the expander implements it.
+ */
+public interface FeedbackExpander extends Expander {
+
+    /**
+     * Expand the query
+     *
+     * @param query the set of tokens of the array to be expanded
+     * @param feedbackDocs the doc ids and scores of the initially relevant documents, in rank order
+     * @param reader the reader the feedback doc ids belong to
+     * @return a new query, which expands on the initial query based on its relevant documents
+     */
+    Query expand(String[] query, ScoreDoc[] feedbackDocs, IndexReader reader) throws IOException;
+}
@@ -0,0 +1,265 @@
+package query.expansion;
+
+import org.apache.lucene.analysis.Analyzer;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.ScoreDoc;
+import query.QueryBuilder;
+import query.expansion.rm.CollectionStatisticsTable;
+import query.expansion.utils.CompactTermVector;
+import query.expansion.utils.TermSignature;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Pseudo relevance feedback from the index-time signatures of the feedback documents alone (see
+ * IndexCreator.setSignatureSize): on the doc id path, no term vector is decoded and no document is re-analyzed, a
+ * feedback document costs the read of a few dozen bytes of doc values. The terms are resolved through the statistics
+ * table the signatures were computed against, which must then be the one of the searched index: the expander refuses to
+ * run (IllegalStateException) if the table is not current with the reader, or if a signature was computed against
+ * another build of the table. The signatures are only computed when the index is created, hence any later change of the
+ * index (new documents, whose signature is an empty placeholder, or a rebuilt table) requires the index to be recreated
+ * before this path can be used again.
+ *
+ * On the Document path, the signatures are computed on the fly: the text of each feedback document is analyzed, and its
+ * top terms are weighted against the same table, as IndexCreator does at index time.
+ *
+ * A signature only holds the top terms of its document, hence the models are approximations of those over the full
+ * documents: in ROCCHIO mode, the centroid of the TF-IDF vectors of the feedback documents; in RM3 mode, the document
+ * models are the normalized signature weights, smoothed with the collection.
+ */
+public class SignatureExpander implements FeedbackExpander {
+    /**
+     * The model built from the signatures
+     */
+    public enum Mode {
+        ROCCHIO,
+        RM3
+    }
+
+    private Mode mode;
+    /**
+     * The statistics table the signatures were computed against
+     */
+    private CollectionStatisticsTable table;
+    /**
+     * The doc values field holding the signatures
+     */
+    private String signatureField;
+    /**
+     * The number of terms of a signature computed on the fly (Document path); that of the index, for consistency
+     */
+    private int signatureSize;
+    /**
+     * Maximal number of feedback documents
+     */
+    private int documentLimit;
+    /**
+     * Maximal number of terms of the new expanded query
+     */
+    private int termLimit;
+    /**
+     * The weight of the original query: alpha in ROCCHIO mode, and the weight of the query model in RM3 mode
+     */
+    private float alpha;
+    /**
+     * The weight of the feedback: beta in ROCCHIO mode, and the weight of the relevance model in RM3 mode
+     */
+    private float beta;
+    /**
+     * The weight of a document model against the collection model, when smoothing (RM3 mode only)
+     */
+    private float smoothingLambda = 0.7f;
+    /**
+     * The target field for the search operation
+     */
+    private String targetField;
+    /**
+     * The query builder, used to build the Lucene query for the expanded plain query
+     */
+    private QueryBuilder queryBuilder;
+    /**
+     * The analyzer of the feedback documents (Document path); that of the index
+     */
+    private Analyzer analyzer;
+
+    public SignatureExpander(Mode mode, CollectionStatisticsTable table, String signatureField, int signatureSize, int documentLimit,
+                             int termLimit, float alpha, float beta, String targetField, Analyzer analyzer, QueryBuilder queryBuilder) {
+        this.mode = mode;
+        this.table = table;
+        this.signatureField = signatureField;
+        this.signatureSize = signatureSize;
+        this.documentLimit = documentLimit;
+        this.termLimit = termLimit;
+        this.alpha = alpha;
+        this.beta = beta;
+        this.targetField = targetField;
+        this.analyzer = analyzer;
+        this.queryBuilder = queryBuilder;
+    }
+
+    public float getSmoothingLambda() {
+        return smoothingLambda;
+    }
+
+    public void setSmoothingLambda(float smoothingLambda) {
+        this.smoothingLambda = smoothingLambda;
+    }
+
+    @Override
+    public Query expand(String[] query, List<Document> relevantDocuments) throws IOException {
+        List<TermSignature> signatures = new ArrayList<>();
+
+        for (int i = 0; i < relevantDocuments.size() && i < documentLimit; ++i) {
+            String text = relevantDocuments.get(i).get(targetField);
+
+            if (text == null)
+                continue;
+
+            TermSignature signature = TermSignature.compute(CompactTermVector.analyze(analyzer, targetField, text), table, signatureSize);
+
+            if (signature.size() > 0)
+                signatures.add(signature);
+        }
+
+        return buildExpandedQuery(query, signatures);
+    }
+
+    @Override
+    public Query expand(String[] query, ScoreDoc[] feedbackDocs, IndexReader reader) throws IOException {
+        if (reader instanceof DirectoryReader && !table.isCurrent((DirectoryReader) reader))
+            throw new IllegalStateException("The statistics table is not current with the index, hence neither are the signatures: " + table);
+
+        List<TermSignature> signatures = new ArrayList<>();
+
+        for (int i = 0; i < feedbackDocs.length && i < documentLimit; ++i) {
+            TermSignature signature = TermSignature.read(reader, feedbackDocs[i].doc, signatureField);
+
+            if (signature == null)
+                continue;
+
+            if (signature.getTableGeneration() != table.getBuildGeneration())
+                throw new IllegalStateException("The signature of doc " + feedbackDocs[i].doc + " was computed against the table build of generation " +
+                        signature.getTableGeneration() + ", not against " + table);
+
+            signatures.add(signature);
+        }
+
+        return buildExpandedQuery(query, signatures);
+    }
+
+    /**
+     * Build the model of the signatures, and a query out of its top weighted terms
+     */
+    private Query buildExpandedQuery(String[] query, List<TermSignature> signatures) throws IOException {
+        Map<Integer, Float> weights = mode == Mode.ROCCHIO ? rocchio(query, signatures) : rm3(query, signatures);
+
+        List<Map.Entry<Integer, Float>> finalQueryTerms = new ArrayList<>(weights.entrySet());
+        finalQueryTerms.sort((Map.Entry<Integer, Float> a, Map.Entry<Integer, Float> b) -> Float.compare(b.getValue(), a.getValue()));
+
+        StringBuilder queryString = new StringBuilder();
+
+        for (Map.Entry<Integer, Float> entry : finalQueryTerms.subList(0, Math.min(termLimit + 1, finalQueryTerms.size())))
+            queryString.append(table.term(entry.getKey())).append(' ');
+
+        return queryBuilder.buildQuery(targetField, queryString.toString());
+    }
+
+    /**
+     * alpha * (the TF-IDF vector of the query) + beta * (the centroid of the signatures)
+     */
+    private Map<Integer, Float> rocchio(String[] query, List<TermSignature> signatures) {
+        Map<Integer, Float> weights = new HashMap<>();
+
+        for (TermSignature signature : signatures)
+            for (int i = 0; i < signature.size(); ++i)
+                weights.merge(signature.getTermId(i), beta * signature.getWeight(i) / signatures.size(), Float::sum);
+
+        for (String term : query) {
+            int termId = table.termId(term);
+
+            if (termId >= 0)
+                weights.merge(termId, alpha * (float) table.getIDF(termId), Float::sum);
+        }
+
+        return weights;
+    }
+
+    /**
+     * alpha * P(w|Q) + beta * P(w|R), where P(w|R) is the sum of the document models weighted by the query likelihoods
+     */
+    private Map<Integer, Float> rm3(String[] query, List<TermSignature> signatures) {
+        Map<Integer, Float> weights = new HashMap<>();
+        int[] queryTermIds = new int[query.length];
+
+        for (int q = 0; q < query.length; ++q)
+            queryTermIds[q] = table.termId(query[q]);
+
+        /* The query likelihood of each document, from its (smoothed) signature model */
+        double[] likelihoods = new double[signatures.size()];
+        double[] norms = new double[signatures.size()];
+        double likelihoodSum = 0.0;
+
+        for (int d = 0; d < signatures.size(); ++d) {
+            TermSignature signature = signatures.get(d);
+
+            for (int i = 0; i < signature.size(); ++i)
+                norms[d] += signature.getWeight(i);
+
+            likelihoods[d] = 1.0;
+
+            for (int termId : queryTermIds) {
+                if (termId < 0)
+                    continue;
+
+                double weight = 0.0;
+
+                for (int i = 0; i < signature.size(); ++i)
+                    if (signature.getTermId(i) == termId)
+                        weight = signature.getWeight(i);
+
+                likelihoods[d] *= smoothingLambda * weight / norms[d] + (1 - smoothingLambda) * table.getNormalizedCF(termId);
+            }
+
+            likelihoodSum += likelihoods[d];
+        }
+
+        /* P(w|R); the collection part of the smoothing is the same for all documents, and does not change the ranking */
+        for (int d = 0; d < signatures.size() && likelihoodSum > 0.0; ++d) {
+            TermSignature signature = signatures.get(d);
+
+            for (int i = 0; i < signature.size(); ++i)
+                weights.merge(signature.getTermId(i), (float) (beta * smoothingLambda * signature.getWeight(i) / norms[d] * likelihoods[d] / likelihoodSum), Float::sum);
+        }
+
+        /* P(w|Q) */
+        for (int termId : queryTermIds)
+            if (termId >= 0)
+                weights.merge(termId, alpha / query.length, Float::sum);
+
+        return weights;
+    }
+
+    @Override
+    public String toString() {
+        return "SignatureExpander{" +
+                "mode=" + mode +
+                ", signatureField='" + signatureField + '\'' +
+                ", signatureSize=" + signatureSize +
+                ", documentLimit=" + documentLimit +
+                ", termLimit=" + termLimit +
+                ", alpha=" + alpha +
+                ", beta=" + beta +
+                ", smoothingLambda=" + smoothingLambda +
+                ", targetField='" + targetField + '\'' +
+                ", table=" + table +
+                ", queryBuilder=" + queryBuilder +
+                '}';
+    }
+}
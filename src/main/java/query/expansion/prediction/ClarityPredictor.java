@@ -0,0 +1,102 @@
+package query.expansion.prediction;
+
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.Terms;
+import org.apache.lucene.index.TermsEnum;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.TopDocs;
+import org.apache.lucene.util.BytesRef;
+import query.expansion.utils.TermStatisticsResolver;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Post-retrieval predictor: the clarity score of the first pass feedback documents, i.e. the KL divergence (in bits)
+ * between their language model and the collection language model. A feedback set which looks like the collection at
+ * large is unlikely to be on topic, hence it is not used for expansion.
+ *
+ * The feedback language model is read from the term vectors of the feedback documents.
+ */
+public class ClarityPredictor implements ExpansionPredictor {
+    /**
+     * The minimal clarity (in bits) for which the query is expanded
+     */
+    private double minClarity;
+    /**
+     * The number of first pass documents which make up the feedback set
+     */
+    private int documentLimit;
+
+    public ClarityPredictor(double minClarity, int documentLimit) {
+        this.minClarity = minClarity;
+        this.documentLimit = documentLimit;
+    }
+
+    @Override
+    public boolean shouldExpand(String[] analyzedQuery, TopDocs firstPass, IndexSearcher searcher, String targetField) throws IOException {
+        IndexReader reader = searcher.getIndexReader();
+        int n = Math.min(documentLimit, firstPass.scoreDocs.length);
+
+        if (n == 0)
+            return false;
+
+        /* P(w|R): the average of the maximum likelihood document models, over the documents which have a term vector */
+        Map<String, Double> feedbackModel = new HashMap<>();
+        int contributing = 0;
+
+        for (int i = 0; i < n; ++i) {
+            Terms terms = reader.getTermVector(firstPass.scoreDocs[i].doc, targetField);
+
+            if (terms == null)
+                continue;
+
+            Map<String, Long> termFreqs = new HashMap<>();
+            long docSize = 0;
+            TermsEnum iterator = terms.iterator();
+            BytesRef byteRef;
+
+            while ((byteRef = iterator.next()) != null) {
+                long termFreq = iterator.totalTermFreq();
+                termFreqs.put(byteRef.utf8ToString(), termFreq);
+                docSize += termFreq;
+            }
+
+            if (docSize == 0)
+                continue;
+
+            for (Map.Entry<String, Long> entry : termFreqs.entrySet())
+                feedbackModel.merge(entry.getKey(), (double) entry.getValue() / (double) docSize, Double::sum);
+
+            ++contributing;
+        }
+
+        if (contributing == 0)
+            return false;
+
+        /* Resolve the collection frequencies of the whole feedback vocabulary in one batch */
+        TermStatisticsResolver resolver = TermStatisticsResolver.forReader(reader, targetField);
+        TermStatisticsResolver.Statistics statistics = resolver.resolve(feedbackModel.keySet());
+        long collectionSize = resolver.getSumTotalTermFreq();
+        double clarity = 0.0;
+
+        for (Map.Entry<String, Double> entry : feedbackModel.entrySet()) {
+            long collectionFreq = statistics.totalTermFreq(entry.getKey());
+            double p_w_given_R = entry.getValue() / contributing;
+            double p_w_given_C = (double) Math.max(collectionFreq, 1L) / (double) collectionSize;
+
+            clarity += p_w_given_R * Math.log(p_w_given_R / p_w_given_C) / Math.log(2);
+        }
+
+        return clarity >= minClarity;
+    }
+
+    @Override
+    public String toString() {
+        return "ClarityPredictor{" +
+                "minClarity=" + minClarity +
+                ", documentLimit=" + documentLimit +
+                '}';
+    }
+}
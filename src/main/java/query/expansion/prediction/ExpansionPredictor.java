@@ -0,0 +1,26 @@
+package query.expansion.prediction;
+
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.TopDocs;
+
+import java.io.IOException;
+
+/**
+ * Decides, query by query, whether the expansion (and hence the second retrieval pass) is worth running. Predictors
+ * should only use cheap signals: term statistics, the first pass scores or the feedback documents.
+ *
+ * Predictors are shared between threads, hence they must not keep per-query state in their fields.
+ */
+public interface ExpansionPredictor {
+
+    /**
+     * Predict whether expanding the query is likely to help
+     *
+     * @param analyzedQuery the analyzed query terms
+     * @param firstPass the results of the first retrieval pass
+     * @param searcher the searcher which produced the first pass
+     * @param targetField the searched field
+     * @return true if the query should be expanded
+     */
+    boolean shouldExpand(String[] analyzedQuery, TopDocs firstPass, IndexSearcher searcher, String targetField) throws IOException;
+}
@@ -0,0 +1,58 @@
+package query.expansion.prediction;
+
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.TopDocs;
+
+import java.io.IOException;
+
+/**
+ * Pre-retrieval predictor: the standard deviation of the IDF of the query terms. Queries whose terms all have a
+ * similar (low) specificity tend to retrieve a diffuse first pass, from which feedback mostly adds noise; such queries
+ * are not expanded.
+ */
+public class IdfSpreadPredictor implements ExpansionPredictor {
+    /**
+     * The minimal IDF standard deviation for which the query is expanded
+     */
+    private double minSpread;
+
+    public IdfSpreadPredictor(double minSpread) {
+        this.minSpread = minSpread;
+    }
+
+    @Override
+    public boolean shouldExpand(String[] analyzedQuery, TopDocs firstPass, IndexSearcher searcher, String targetField) throws IOException {
+        /* A single term has no spread; let it through */
+        if (analyzedQuery.length < 2)
+            return true;
+
+        IndexReader reader = searcher.getIndexReader();
+        int docCount = reader.maxDoc();
+        double[] idfs = new double[analyzedQuery.length];
+        double mean = 0.0;
+
+        for (int i = 0; i < analyzedQuery.length; ++i) {
+            int df = reader.docFreq(new Term(targetField, analyzedQuery[i]));
+            idfs[i] = Math.log((double) docCount / (double) (df + 1));
+            mean += idfs[i];
+        }
+
+        mean /= idfs.length;
+
+        double variance = 0.0;
+
+        for (double idf : idfs)
+            variance += (idf - mean) * (idf - mean);
+
+        return Math.sqrt(variance / idfs.length) >= minSpread;
+    }
+
+    @Override
+    public String toString() {
+        return "IdfSpreadPredictor{" +
+                "minSpread=" + minSpread +
+                '}';
+    }
+}
@@ -0,0 +1,55 @@
+package query.expansion.prediction;
+
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.TopDocs;
+
+import java.io.IOException;
+
+/**
+ * Post-retrieval predictor over the first pass scores: the coefficient of variation of the top scores (a
+ * normalized query commitment). A flat score distribution means that the first pass could not separate its top
+ * documents, hence that they make for poor feedback; such queries are not expanded.
+ */
+public class ScoreDistributionPredictor implements ExpansionPredictor {
+    /**
+     * The minimal coefficient of variation of the top scores for which the query is expanded
+     */
+    private double minVariation;
+
+    public ScoreDistributionPredictor(double minVariation) {
+        this.minVariation = minVariation;
+    }
+
+    @Override
+    public boolean shouldExpand(String[] analyzedQuery, TopDocs firstPass, IndexSearcher searcher, String targetField) throws IOException {
+        int n = firstPass.scoreDocs.length;
+
+        /* Nothing to learn from */
+        if (n < 2)
+            return false;
+
+        double mean = 0.0;
+
+        for (int i = 0; i < n; ++i)
+            mean += firstPass.scoreDocs[i].score;
+
+        mean /= n;
+
+        if (mean <= 0.0)
+            return false;
+
+        double variance = 0.0;
+
+        for (int i = 0; i < n; ++i)
+            variance += (firstPass.scoreDocs[i].score - mean) * (firstPass.scoreDocs[i].score - mean);
+
+        return Math.sqrt(variance / n) / mean >= minVariation;
+    }
+
+    @Override
+    public String toString() {
+        return "ScoreDistributionPredictor{" +
+                "minVariation=" + minVariation +
+                '}';
+    }
+}
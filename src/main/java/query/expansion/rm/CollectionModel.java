@@ -0,0 +1,37 @@
+package query.expansion.rm;
+
+/**
+ * The collection level statistics of a field of the main index, which the relevance models smooth their document
+ * language models with: P(w|C) = cf(w) / |C|. Implementations are precomputed once, and shared between queries.
+ */
+public interface CollectionModel {
+    /**
+     * @param term an analyzed term
+     * @return the number of occurrences of the term in the collection; 0 if it does not occur
+     */
+    long getCollectionFrequency(String term);
+
+    /**
+     * @param term an analyzed term
+     * @return the number of documents of the collection containing the term; 0 if it does not occur
+     */
+    long getDocumentFrequency(String term);
+
+    /**
+     * @return the total number of term occurrences in the collection, i.e. |C|
+     */
+    long getCollectionLength();
+
+    /**
+     * @return the number of documents of the collection
+     */
+    long getDocumentCount();
+
+    /**
+     * @param term an analyzed term
+     * @return P(w|C) = cf(w) / |C|
+     */
+    default float getCollectionProbability(String term) {
+        return (float) getCollectionFrequency(term) / (float) getCollectionLength();
+    }
+}
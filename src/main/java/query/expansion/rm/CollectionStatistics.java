@@ -23,7 +23,7 @@ import static query.expansion.rm.CommonVariables.FIELD_BOW;
  */
 
 
-public class CollectionStatistics {
+public class CollectionStatistics implements CollectionModel {
 
     /**
      * Path of the directory in which the index is stored.
@@ -75,6 +75,17 @@ public class CollectionStatistics {
         perTermStat = new HashMap<>();
     }
 
+    /**
+     * Constructor, over an already opened index; the reader is not closed by the statistics
+     * @param indexReader The reader of the index
+     * @param field The field of the index which will be searched
+     */
+    public CollectionStatistics(IndexReader indexReader, String field) {
+        this.indexReader = indexReader;
+        this.field = field;
+        perTermStat = new HashMap<>();
+    }
+
     /**
      * Default constructor.
      */
@@ -82,6 +93,31 @@ public class CollectionStatistics {
         perTermStat = new HashMap<>();
     }
 
+    @Override
+    public long getCollectionFrequency(String term) {
+        PerTermStat stat = perTermStat.get(term);
+        return stat == null ? 0 : stat.getCF();
+    }
+
+    @Override
+    public long getDocumentFrequency(String term) {
+        PerTermStat stat = perTermStat.get(term);
+        return stat == null ? 0 : stat.getDF();
+    }
+
+    /**
+     * @return the collection size, i.e. vocSize; buildCollectionStat must have been called
+     */
+    @Override
+    public long getCollectionLength() {
+        return vocSize;
+    }
+
+    @Override
+    public long getDocumentCount() {
+        return docCount;
+    }
+
     /**
      * Returns the vocabulary size of the index for 'field'.
      * @param indexReader
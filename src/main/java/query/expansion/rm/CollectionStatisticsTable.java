@@ -0,0 +1,405 @@
+package query.expansion.rm;
+
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.MultiFields;
+import org.apache.lucene.index.Terms;
+import org.apache.lucene.index.TermsEnum;
+import org.apache.lucene.util.BytesRef;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * The statistics of every term of a field, persisted as primitive columns and memory-mapped: the table opens in
+ * milliseconds, and its heap footprint does not depend on the size of the vocabulary (unlike the HashMap of
+ * CollectionStatistics). The terms are sorted in the index order, and a term's id is its rank; the columns are indexed
+ * by term id.
+ *
+ * The table is a directory of files:
+ *
+ *     meta        magic, version, commit generation, reader version, build generation, doc count, collection length,
+ *                 term count, field
+ *     offsets     int[termCount + 1], the start of each term within 'terms'
+ *     terms       the UTF-8 bytes of the terms, concatenated
+ *     cf          long[termCount]
+ *     df          int[termCount]
+ *     idf         double[termCount], log(docCount / (df + 1)), as in CollectionStatistics
+ *     norm_cf     double[termCount], cf / collection length
+ *
+ * The meta file is written last, hence a table without it is incomplete. The table is tagged with the generation of the
+ * index commit it was built from, and with the version of the reader (which, unlike the generation, also changes with
+ * the uncommitted segments a near-real-time reader sees); see isCurrent and openOrBuild.
+ *
+ * The term ids are ranks, hence they only hold for the build they come from: the build generation (the commit
+ * generation the terms were read from, which retag does not change) identifies them, e.g. in the term signatures.
+ *
+ * Each file is mapped as a single buffer, with int offsets, hence none may exceed 2 GB: the table holds at most
+ * MAX_TERM_COUNT terms, whose bytes add up to at most 2 GB. A larger vocabulary fails the build, rather than wrapping.
+ */
+public class CollectionStatisticsTable implements CollectionModel {
+    private static final int MAGIC = 0x43535442;
+    private static final int VERSION = 3;
+    /**
+     * The largest term count for which the long and double columns (8 bytes per term) fit in one mapped buffer
+     */
+    public static final int MAX_TERM_COUNT = Integer.MAX_VALUE / 8;
+
+    private static final String META_FILE = "meta";
+    private static final String OFFSETS_FILE = "offsets";
+    private static final String TERMS_FILE = "terms";
+    private static final String CF_FILE = "cf";
+    private static final String DF_FILE = "df";
+    private static final String IDF_FILE = "idf";
+    private static final String NORM_CF_FILE = "norm_cf";
+
+    /**
+     * The generation of the index commit the table was built from; -1 if the reader was not a DirectoryReader
+     */
+    private final long generation;
+    /**
+     * The version of the reader the table was built from (see DirectoryReader.getVersion); -1 if it was not a
+     * DirectoryReader
+     */
+    private final long readerVersion;
+    /**
+     * The generation of the commit the terms, hence the term ids, were read from; it is kept by retag
+     */
+    private final long buildGeneration;
+    private final long docCount;
+    private final long collectionLength;
+    private final int termCount;
+    private final String field;
+
+    /* The mapped columns; only absolute gets are used, hence they can be read concurrently */
+    private final ByteBuffer offsets;
+    private final ByteBuffer terms;
+    private final ByteBuffer cf;
+    private final ByteBuffer df;
+    private final ByteBuffer idf;
+    private final ByteBuffer normCf;
+
+    private CollectionStatisticsTable(Path tableDirectory) throws IOException {
+        ByteBuffer meta = ByteBuffer.wrap(Files.readAllBytes(tableDirectory.resolve(META_FILE)));
+
+        if (meta.getInt() != MAGIC || meta.getInt() != VERSION)
+            throw new IOException("Not a collection statistics table (or an unsupported version): " + tableDirectory);
+
+        generation = meta.getLong();
+        readerVersion = meta.getLong();
+        buildGeneration = meta.getLong();
+        docCount = meta.getLong();
+        collectionLength = meta.getLong();
+        termCount = meta.getInt();
+
+        if (termCount < 0 || termCount > MAX_TERM_COUNT)
+            throw new IOException("Corrupt collection statistics table (term count " + termCount + "): " + tableDirectory);
+
+        byte[] fieldBytes = new byte[meta.getInt()];
+        meta.get(fieldBytes);
+        field = new String(fieldBytes, StandardCharsets.UTF_8);
+
+        offsets = map(tableDirectory.resolve(OFFSETS_FILE));
+        terms = map(tableDirectory.resolve(TERMS_FILE));
+        cf = map(tableDirectory.resolve(CF_FILE));
+        df = map(tableDirectory.resolve(DF_FILE));
+        idf = map(tableDirectory.resolve(IDF_FILE));
+        normCf = map(tableDirectory.resolve(NORM_CF_FILE));
+
+        if (offsets.capacity() != 4L * (termCount + 1) || terms.capacity() != offsets.getInt(4 * termCount)
+                || cf.capacity() != 8L * termCount || df.capacity() != 4L * termCount
+                || idf.capacity() != 8L * termCount || normCf.capacity() != 8L * termCount)
+            throw new IOException("Truncated collection statistics table: " + tableDirectory);
+    }
+
+    /**
+     * Open a table
+     *
+     * @param tableDirectory the directory the table was written to
+     * @return the table
+     * @throws IOException if the table is missing, incomplete or corrupt
+     */
+    public static CollectionStatisticsTable open(Path tableDirectory) throws IOException {
+        return new CollectionStatisticsTable(tableDirectory);
+    }
+
+    /**
+     * Open a table, and (re)build it first if it is missing, if it cannot be opened (e.g. it is truncated, or of another
+     * version), or if it was built from another commit of the index
+     *
+     * @param reader the reader of the index
+     * @param field the field whose statistics are kept
+     * @param tableDirectory the directory of the table
+     * @return the table, current with the reader
+     * @throws IOException if the table cannot be built or opened
+     */
+    public static CollectionStatisticsTable openOrBuild(DirectoryReader reader, String field, Path tableDirectory) throws IOException {
+        if (Files.exists(tableDirectory.resolve(META_FILE))) {
+            try {
+                CollectionStatisticsTable table = open(tableDirectory);
+
+                if (table.isCurrent(reader) && table.getField().equals(field))
+                    return table;
+
+                System.out.println("> Collection statistics table of generation " + table.getGeneration() + " is stale; rebuilding");
+            } catch (IOException e) {
+                System.err.println("> Collection statistics table cannot be opened (" + e.getMessage() + "); rebuilding");
+            }
+        }
+
+        long start = System.nanoTime();
+        write(reader, field, tableDirectory);
+        System.out.println("> Collection statistics table built in " + ((System.nanoTime() - start) / 1_000_000.0) + " ms");
+
+        return open(tableDirectory);
+    }
+
+    /**
+     * Write the table of a field, in a single pass over its terms
+     *
+     * @param reader the reader of the index; if it is a DirectoryReader, the table is tagged with its commit generation
+     * @param field the field whose statistics are kept
+     * @param tableDirectory the directory of the table; it is created if needed, and an existing table is overwritten
+     * @throws IOException if the terms cannot be read, the table cannot be written, or the field has more than
+     *                     MAX_TERM_COUNT terms or more than 2 GB of term bytes
+     */
+    public static void write(IndexReader reader, String field, Path tableDirectory) throws IOException {
+        Terms fieldTerms = MultiFields.getTerms(reader, field);
+
+        if (fieldTerms == null)
+            throw new IllegalArgumentException("Field " + field + " has no terms");
+
+        Files.createDirectories(tableDirectory);
+
+        /* Invalidate the previous table until this one is complete */
+        Files.deleteIfExists(tableDirectory.resolve(META_FILE));
+
+        long docCount = reader.maxDoc();
+        long collectionLength = fieldTerms.getSumTotalTermFreq();
+        long generation = reader instanceof DirectoryReader ? ((DirectoryReader) reader).getIndexCommit().getGeneration() : -1;
+        long readerVersion = reader instanceof DirectoryReader ? ((DirectoryReader) reader).getVersion() : -1;
+        int termCount = 0;
+        int termOffset = 0;
+
+        try (DataOutputStream offsetsOut = newOutput(tableDirectory.resolve(OFFSETS_FILE));
+             DataOutputStream termsOut = newOutput(tableDirectory.resolve(TERMS_FILE));
+             DataOutputStream cfOut = newOutput(tableDirectory.resolve(CF_FILE));
+             DataOutputStream dfOut = newOutput(tableDirectory.resolve(DF_FILE));
+             DataOutputStream idfOut = newOutput(tableDirectory.resolve(IDF_FILE));
+             DataOutputStream normCfOut = newOutput(tableDirectory.resolve(NORM_CF_FILE))) {
+            TermsEnum iterator = fieldTerms.iterator();
+            BytesRef byteRef;
+
+            while ((byteRef = iterator.next()) != null) {
+                if (termCount == MAX_TERM_COUNT || (long) termOffset + byteRef.length > Integer.MAX_VALUE)
+                    throw new IOException("Field " + field + " is too large for a collection statistics table: more than " +
+                            MAX_TERM_COUNT + " terms, or more than 2 GB of term bytes");
+
+                int termDf = iterator.docFreq();
+                long termCf = iterator.totalTermFreq();
+
+                offsetsOut.writeInt(termOffset);
+                termsOut.write(byteRef.bytes, byteRef.offset, byteRef.length);
+                cfOut.writeLong(termCf);
+                dfOut.writeInt(termDf);
+                idfOut.writeDouble(Math.log((float) (docCount) / (float) (termDf + 1)));
+                normCfOut.writeDouble((double) termCf / (double) collectionLength);
+
+                termOffset += byteRef.length;
+                ++termCount;
+            }
+
+            offsetsOut.writeInt(termOffset);
+        }
+
+        byte[] fieldBytes = field.getBytes(StandardCharsets.UTF_8);
+        ByteBuffer meta = ByteBuffer.allocate(4 + 4 + 8 + 8 + 8 + 8 + 8 + 4 + 4 + fieldBytes.length);
+        meta.putInt(MAGIC).putInt(VERSION).putLong(generation).putLong(readerVersion).putLong(generation).putLong(docCount)
+                .putLong(collectionLength).putInt(termCount).putInt(fieldBytes.length).put(fieldBytes);
+
+        Files.write(tableDirectory.resolve(META_FILE), meta.array());
+    }
+
+    /**
+     * Tag an existing table with the commit of a reader, without rebuilding it. This is only valid if the terms of the
+     * field did not change since the table was built, e.g. if the commit in between only updated doc values.
+     *
+     * @param tableDirectory the directory of the table
+     * @param reader the reader of the index, on the new commit
+     * @throws IOException if the table cannot be read or rewritten, or if it does not match the reader
+     */
+    public static void retag(Path tableDirectory, DirectoryReader reader) throws IOException {
+        CollectionStatisticsTable table = open(tableDirectory);
+        Terms fieldTerms = MultiFields.getTerms(reader, table.getField());
+
+        if (fieldTerms == null || table.getDocumentCount() != reader.maxDoc() || table.getCollectionLength() != fieldTerms.getSumTotalTermFreq())
+            throw new IOException("The collection statistics table does not match the index; it must be rebuilt: " + tableDirectory);
+
+        byte[] fieldBytes = table.getField().getBytes(StandardCharsets.UTF_8);
+        ByteBuffer meta = ByteBuffer.allocate(4 + 4 + 8 + 8 + 8 + 8 + 8 + 4 + 4 + fieldBytes.length);
+        meta.putInt(MAGIC).putInt(VERSION).putLong(reader.getIndexCommit().getGeneration()).putLong(reader.getVersion())
+                .putLong(table.getBuildGeneration()).putLong(table.getDocumentCount()).putLong(table.getCollectionLength()).putInt(table.getTermCount())
+                .putInt(fieldBytes.length).put(fieldBytes);
+
+        Files.write(tableDirectory.resolve(META_FILE), meta.array());
+    }
+
+    /**
+     * @param reader a reader of the index
+     * @return true if the table was built from the commit the reader is on, and the reader sees no segment the commit
+     *         does not have (e.g. the unflushed segments of a near-real-time reader)
+     * @throws IOException if the commit of the reader cannot be read
+     */
+    public boolean isCurrent(DirectoryReader reader) throws IOException {
+        return generation >= 0 && generation == reader.getIndexCommit().getGeneration() && readerVersion == reader.getVersion();
+    }
+
+    /**
+     * Look a term up, by binary search over the sorted terms
+     *
+     * @param term an analyzed term
+     * @return the id of the term, or -1 if it is not in the table
+     */
+    public int termId(String term) {
+        byte[] key = term.getBytes(StandardCharsets.UTF_8);
+        int low = 0;
+        int high = termCount - 1;
+
+        while (low <= high) {
+            int middle = (low + high) >>> 1;
+            int cmp = compareTerm(middle, key);
+
+            if (cmp < 0)
+                low = middle + 1;
+            else if (cmp > 0)
+                high = middle - 1;
+            else
+                return middle;
+        }
+
+        return -1;
+    }
+
+    /**
+     * @param termId the id of a term
+     * @return the term
+     */
+    public String term(int termId) {
+        int start = offsets.getInt(4 * termId);
+        byte[] bytes = new byte[offsets.getInt(4 * (termId + 1)) - start];
+
+        for (int i = 0; i < bytes.length; ++i)
+            bytes[i] = terms.get(start + i);
+
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    public long getCF(int termId) {
+        return cf.getLong(8 * termId);
+    }
+
+    public int getDF(int termId) {
+        return df.getInt(4 * termId);
+    }
+
+    public double getIDF(int termId) {
+        return idf.getDouble(8 * termId);
+    }
+
+    public double getNormalizedCF(int termId) {
+        return normCf.getDouble(8 * termId);
+    }
+
+    @Override
+    public long getCollectionFrequency(String term) {
+        int termId = termId(term);
+        return termId < 0 ? 0 : getCF(termId);
+    }
+
+    @Override
+    public long getDocumentFrequency(String term) {
+        int termId = termId(term);
+        return termId < 0 ? 0 : getDF(termId);
+    }
+
+    @Override
+    public long getCollectionLength() {
+        return collectionLength;
+    }
+
+    @Override
+    public long getDocumentCount() {
+        return docCount;
+    }
+
+    public long getGeneration() {
+        return generation;
+    }
+
+    public long getReaderVersion() {
+        return readerVersion;
+    }
+
+    public long getBuildGeneration() {
+        return buildGeneration;
+    }
+
+    public int getTermCount() {
+        return termCount;
+    }
+
+    public String getField() {
+        return field;
+    }
+
+    /**
+     * Compare the term of an id against a key, as unsigned bytes (i.e. in the index order)
+     */
+    private int compareTerm(int termId, byte[] key) {
+        int start = offsets.getInt(4 * termId);
+        int length = offsets.getInt(4 * (termId + 1)) - start;
+        int common = Math.min(length, key.length);
+
+        for (int i = 0; i < common; ++i) {
+            int cmp = (terms.get(start + i) & 0xFF) - (key[i] & 0xFF);
+
+            if (cmp != 0)
+                return cmp;
+        }
+
+        return length - key.length;
+    }
+
+    private static DataOutputStream newOutput(Path file) throws IOException {
+        return new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(file), 1 << 16));
+    }
+
+    private static ByteBuffer map(Path file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            if (channel.size() > Integer.MAX_VALUE)
+                throw new IOException("Collection statistics file larger than 2 GB: " + file);
+
+            return channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "CollectionStatisticsTable{" +
+                "field='" + field + '\'' +
+                ", generation=" + generation +
+                ", readerVersion=" + readerVersion +
+                ", buildGeneration=" + buildGeneration +
+                ", termCount=" + termCount +
+                ", docCount=" + docCount +
+                ", collectionLength=" + collectionLength +
+                '}';
+    }
+}
@@ -4,10 +4,17 @@ import org.apache.lucene.index.*;
 import org.apache.lucene.search.similarities.ClassicSimilarity;
 import org.apache.lucene.util.BytesRef;
 import org.jetbrains.annotations.NotNull;
+import query.expansion.utils.CompactTermVector;
+import query.expansion.utils.TermStatisticsResolver;
 
 import java.io.IOException;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 /**
  * @author Dan Graur 4/9/2018
@@ -95,57 +102,91 @@ public class DocumentVector {
     }
 
     public static DocumentVector getDocumentVector(int luceneDocId, @NotNull IndexReader indexReader, String targetField) throws IOException {
-        DocumentVector dv = new DocumentVector();
-        int docSize = 0;
+        return getDocumentVectors(Collections.singletonList(luceneDocId), indexReader, targetField).get(luceneDocId);
+    }
 
-        Terms terms = indexReader.getTermVector(luceneDocId, targetField);
+    /**
+     * Returns the document vectors of a set of documents, with the collection statistics (idf and P(t|C)) of their
+     * terms. The statistics of the union of the terms are resolved in one batch, hence a term which occurs in several
+     * documents is only looked up once.
+     *
+     * @param luceneDocIds the doc ids of the documents
+     * @param indexReader the reader of the documents
+     * @param targetField the field whose term vectors are read
+     * @return the document vectors, keyed by doc id, in the order of the doc ids; documents without term vectors are left out
+     * @throws IOException if the term vectors or the terms dictionary cannot be read
+     */
+    public static Map<Integer, DocumentVector> getDocumentVectors(List<Integer> luceneDocIds, @NotNull IndexReader indexReader, String targetField) throws IOException {
+        /* Decode the term vectors first, such that the statistics of their terms can be resolved at once */
+        Map<Integer, CompactTermVector> termVectors = new LinkedHashMap<>();
+        Set<String> terms = new HashSet<>();
 
-        if(null == terms) {
-            System.err.println("Error getDocumentVector(): Term vectors not indexed: " + luceneDocId);
-            return null;
-        }
+        for (int luceneDocId : luceneDocIds) {
+            CompactTermVector termVector = CompactTermVector.read(indexReader, luceneDocId, targetField);
 
-        /* Declare the similarity which will allow us to compute the IDF */
-        ClassicSimilarity similarity = new ClassicSimilarity();
-        int docNumber = indexReader.maxDoc();
-        long vocabularySize = getVocabularySize(indexReader, targetField);
+            if (termVector == null) {
+                System.err.println("Error getDocumentVector(): Term vectors not indexed: " + luceneDocId);
+                continue;
+            }
 
-//        System.out.println(vocabularySize);
+            termVectors.put(luceneDocId, termVector);
 
-        /* Instantiations for iteration later on */
-        TermsEnum iterator = terms.iterator();
-        BytesRef byteRef;
+            for (int i = 0; i < termVector.size(); ++i)
+                terms.add(termVector.getTerm(i));
+        }
 
-        /* Iterate through each of the indexed terms of the document */
-        while((byteRef = iterator.next()) != null) {
-            String term = new String(byteRef.bytes, byteRef.offset, byteRef.length);
+        TermStatisticsResolver resolver = TermStatisticsResolver.forReader(indexReader, targetField);
+        TermStatisticsResolver.Statistics statistics = resolver.resolve(terms);
 
-            /* Get the word frequency within the document */
-            long termFreq = iterator.totalTermFreq();
+        /* Declare the similarity which will allow us to compute the IDF */
+        ClassicSimilarity similarity = new ClassicSimilarity();
+        int docNumber = resolver.getDocCount();
+        long vocabularySize = resolver.getSumTotalTermFreq();
+
+        Map<Integer, DocumentVector> documentVectors = new LinkedHashMap<>();
+
+        for (Map.Entry<Integer, CompactTermVector> entry : termVectors.entrySet()) {
+            CompactTermVector termVector = entry.getValue();
+            DocumentVector dv = new DocumentVector();
+
+            /* Iterate through each of the indexed terms of the document */
+            for (int i = 0; i < termVector.size(); ++i) {
+                String term = termVector.getTerm(i);
+
+                //* termFreq = cf, in a document; df = 1, in a document
+                dv.docPerTermStat.put(
+                        term,
+                        new PerTermStat(
+                                term,
+                                termVector.getFreq(i),
+                                1,
+                                similarity.idf(statistics.docFreq(term), docNumber),
+                                (float) statistics.totalTermFreq(term) / (float) vocabularySize
+                        )
+                );
+            }
+            dv.size = (int) termVector.getLength();
+
+            documentVectors.put(entry.getKey(), dv);
+        }
 
-            /* Accumulate the number of words the document, so as to normalize later */
-            docSize += termFreq;
+        return documentVectors;
+    }
 
-            /* Check the outputs */
-//            System.out.println("Term: '" + term + "' has frequency: " + termFreq);
-//            System.out.println("Term: " + term + " Document frequency " + indexReader.docFreq(new Term(targetField, byteRef)));
+    /**
+     * Build the vector of a document from its decoded term vector; only the term frequencies are filled in
+     * (termFreq = cf, in a document; df = 1, in a document)
+     *
+     * @param termVector the term vector of the document
+     * @return the document vector
+     */
+    public static DocumentVector fromTermVector(CompactTermVector termVector) {
+        HashMap<String, PerTermStat> docVec = new HashMap<>(2 * termVector.size());
 
-            //* termFreq = cf, in a document; df = 1, in a document
-            //dv.docPerTermStat.put(t, new PerTermStat(t, termFreq, 1));
-            dv.docPerTermStat.put(
-                    term,
-                    new PerTermStat(
-                            term,
-                            termFreq,
-                            1,
-                            similarity.idf(indexReader.docFreq(new Term(targetField, byteRef)), docNumber),
-                            getCollectionProbability(term, indexReader, targetField, vocabularySize)
-                    )
-            );
-        }
-        dv.size = docSize;
+        for (int i = 0; i < termVector.size(); ++i)
+            docVec.put(termVector.getTerm(i), new PerTermStat(termVector.getTerm(i), termVector.getFreq(i), 1));
 
-        return dv;
+        return new DocumentVector(docVec, (int) termVector.getLength());
     }
 
     public static long getVocabularySize(IndexReader indexReader, String field) throws IOException {
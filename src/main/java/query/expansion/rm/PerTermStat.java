@@ -78,7 +78,7 @@ public class PerTermStat {
      * @return the new value
      */
     public long incrementCF(long addCf) {
-        df += addCf;
-        return df;
+        cf += addCf;
+        return cf;
     }
 }
\ No newline at end of file
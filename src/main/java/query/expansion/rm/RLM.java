@@ -7,7 +7,10 @@ import org.apache.lucene.index.IndexReader;
 import org.apache.lucene.index.MultiFields;
 import org.apache.lucene.index.Terms;
 import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.ScoreDoc;
 import org.apache.lucene.store.Directory;
+import query.expansion.utils.CompactTermVector;
+import query.expansion.utils.DocumentVectorCache;
 import query.expansion.utils.Utils;
 
 import java.io.IOException;
@@ -67,6 +70,15 @@ public class RLM {
      * The size of the vocabulary
      */
     private long vocabularySize;
+    /**
+     * The statistics of the main index, which the document models are smoothed with; if null, they are smoothed with
+     * the statistics of the feedback documents
+     */
+    private CollectionModel collectionModel;
+    /**
+     * The cache of the decoded term vectors of the feedback documents, shared between queries; may be null
+     */
+    private DocumentVectorCache documentVectorCache;
 
 
     public RLM(Analyzer analyzer, int numFeedbackDocs, int numFeedbackTerms, float lambda, float mixingLambda, String targetField) {
@@ -78,6 +90,33 @@ public class RLM {
         this.targetField = targetField;
     }
 
+    public CollectionModel getCollectionModel() {
+        return collectionModel;
+    }
+
+    /**
+     * Smooth the document models with the statistics of the main index, instead of the ones of the feedback documents.
+     * The Document based feedback stats then analyze the feedback documents directly, instead of indexing them.
+     *
+     * @param collectionModel the collection model of the target field, or null to smooth with the feedback documents
+     */
+    public void setCollectionModel(CollectionModel collectionModel) {
+        this.collectionModel = collectionModel;
+    }
+
+    public DocumentVectorCache getDocumentVectorCache() {
+        return documentVectorCache;
+    }
+
+    /**
+     * Read the term vectors of the feedback documents (of the live index) through a cache
+     *
+     * @param documentVectorCache the cache, or null to decode the term vectors on every query
+     */
+    public void setDocumentVectorCache(DocumentVectorCache documentVectorCache) {
+        this.documentVectorCache = documentVectorCache;
+    }
+
     /**
      * Compute P(Q|d) probabilities given: a set of set of relevant documents for the initial query, and the tokenized query itself
      *
@@ -86,10 +125,20 @@ public class RLM {
      * @throws IOException
      */
     public void setFeedbackStats(List<Document> hits, String[] analyzedQuery) throws IOException {
-        /* Clear/Initiate the DS we'll be using in the algorithm */
-        feedbackDocumentVectors = new HashMap<>();
-        feedbackTermStats = new HashMap<>();
-        hash_P_Q_Given_D = new HashMap<>();
+        if (collectionModel != null) {
+            /* The feedback documents are not the collection of the smoothing, hence there is no need to index them */
+            Map<Integer, DocumentVector> documentVectors = new LinkedHashMap<>();
+
+            for (int i = 0; i < hits.size() && i < numFeedbackDocs; ++i) {
+                String text = hits.get(i).get(targetField);
+
+                if (text != null)
+                    documentVectors.put(i, DocumentVector.fromTermVector(CompactTermVector.analyze(analyzer, targetField, text)));
+            }
+
+            setFeedbackStats(documentVectors, analyzedQuery);
+            return;
+        }
 
         /* Get an index reader, given the current hit list */
         Directory directory = Utils.generateRelevantDirectory(hits, analyzer, numFeedbackDocs);
@@ -97,40 +146,82 @@ public class RLM {
         /* Create the Index */
         IndexSearcher indexSearcher = Utils.createIndexSearcher(directory);
 
-        /* Compute the vocabulary size */
-        getVocabularySize(indexSearcher.getIndexReader());
+        try {
+            /* Compute the vocabulary size */
+            getVocabularySize(indexSearcher.getIndexReader());
+
+//            System.out.println("The vocabulary size is: " + vocabularySize);
 
-//        System.out.println("The vocabulary size is: " + vocabularySize);
+            /* Get the document ids */
+            List<Integer> docIds = Utils.getDocumentIds(indexSearcher, numFeedbackDocs);
+
+            /* Get the document vectors; the statistics of their terms are resolved in one batch */
+            setFeedbackStats(DocumentVector.getDocumentVectors(docIds, indexSearcher.getIndexReader(), targetField), analyzedQuery);
+        } finally {
+            /* The per-query index is not needed past this point; closing it also drops its cached term statistics */
+            indexSearcher.getIndexReader().close();
+        }
+    }
 
-        /* Get the document ids */
-        List<Integer> docIds = Utils.getDocumentIds(indexSearcher, numFeedbackDocs);
+    /**
+     * Compute P(Q|d) probabilities given: the doc ids of the relevant documents for the initial query in the live
+     * index, and the tokenized query itself. The document vectors are read from the term vectors of the index, hence
+     * no per-query index is built; the "collection" of the smoothing is still the feedback set.
+     *
+     * @param hits          the relevant documents for the initial query, in rank order
+     * @param reader        the reader the doc ids belong to
+     * @param analyzedQuery the tokenized query itself
+     * @throws IOException if the term vectors cannot be read
+     */
+    public void setFeedbackStats(ScoreDoc[] hits, IndexReader reader, String[] analyzedQuery) throws IOException {
+        Map<Integer, DocumentVector> documentVectors = new LinkedHashMap<>();
+        vocabularySize = 0;
 
-        for (Integer luceneDocId : docIds) {
-            /* Get the document vector */
-            DocumentVector docV = DocumentVector.getDocumentVector(luceneDocId, indexSearcher.getIndexReader(), targetField);
+        for (int i = 0; i < hits.length && i < numFeedbackDocs; ++i) {
+            CompactTermVector termVector = CompactTermVector.read(reader, hits[i].doc, targetField, documentVectorCache);
 
-            /* Defensive check - see if the document vector has indeed been created */
-            if (docV == null)
+            if (termVector == null) {
+                System.err.println("Error setFeedbackStats(): Term vectors not indexed: " + hits[i].doc);
                 continue;
+            }
 
-            /* Add the vector of the relevant documents in a map */
-            feedbackDocumentVectors.put(luceneDocId, docV);
+            DocumentVector docV = DocumentVector.fromTermVector(termVector);
+            documentVectors.put(hits[i].doc, docV);
 
+            /* The size of the feedback "collection" */
+            vocabularySize += docV.getDocSize();
+        }
+
+        setFeedbackStats(documentVectors, analyzedQuery);
+    }
+
+    /**
+     * Aggregate the statistics of the feedback terms, and compute P(Q|d) for each feedback document
+     *
+     * @param documentVectors the vectors of the feedback documents, keyed by their doc id
+     * @param analyzedQuery   the tokenized query itself
+     */
+    private void setFeedbackStats(Map<Integer, DocumentVector> documentVectors, String[] analyzedQuery) {
+        /* Clear/Initiate the DS we'll be using in the algorithm */
+        feedbackDocumentVectors = documentVectors;
+        feedbackTermStats = new HashMap<>();
+        hash_P_Q_Given_D = new HashMap<>();
+
+        for (DocumentVector docV : documentVectors.values()) {
             /* Iterate through each term of the document */
             for (Map.Entry<String, PerTermStat> entrySet : docV.docPerTermStat.entrySet()) {
                 /* Get the term and its stats */
                 String key = entrySet.getKey();
                 PerTermStat value = entrySet.getValue();
+                PerTermStat termStat = feedbackTermStats.get(key);
 
-                /* If the term does not exist in the feedbackTermStats, then add it together with its initial stats */
-                if (!feedbackTermStats.containsKey(key))
+                /* Accumulate the Corpus Frequency and the Document Frequency of the term over the feedback documents; the
+                 * stats of the document vector itself are left untouched */
+                if (termStat == null)
                     feedbackTermStats.put(key, new PerTermStat(key, value.getCF(), value.getDF()));
                 else {
-                    /* If it does exist (seen in a previous document), then update the Corpus Frequency and the Document Frequency of the term in the feedbackTermStats map */
-                    value.incrementCF(feedbackTermStats.get(key).getCF());
-                    value.incrementDF(feedbackTermStats.get(key).getDF());
-
-                    feedbackTermStats.put(key, value);
+                    termStat.incrementCF(value.getCF());
+                    termStat.incrementDF(value.getDF());
                 }
             }
         }
@@ -165,7 +256,13 @@ public class RLM {
         docPTS = dv.docPerTermStat.get(t);
         PerTermStat colPTS = feedbackTermStats.get(t);
 
-        if (colPTS != null) {
+        if (collectionModel != null) {
+            /* Terms which are unknown to the collection are skipped, as terms unknown to the feedback documents are */
+            if (collectionModel.getCollectionFrequency(t) > 0)
+                smoothedMLEofTerm =
+                        ((docPTS != null) ? (mixingLambda * (float) docPTS.getCF() / (float) dv.getDocSize()) : 0) +
+                                (1.0f - mixingLambda) * collectionModel.getCollectionProbability(t);
+        } else if (colPTS != null) {
             smoothedMLEofTerm =
                     ((docPTS != null) ? (mixingLambda * (float) docPTS.getCF() / (float) dv.getDocSize()) : 0) +
                             ((feedbackTermStats.get(t) != null) ? ((1.0f - mixingLambda) * (float) feedbackTermStats.get(t).getCF() / (float) vocabularySize) : 0);
@@ -192,7 +289,7 @@ public class RLM {
 
         smoothedMLEofTerm =
                 ((docPTS != null) ? (mixingLambda * (float) docPTS.getCF() / (float) dv.getDocSize()) : (0))
-                        + (1.0f - mixingLambda) * ((float) pts.getCF() / (float) vocabularySize);
+                        + (1.0f - mixingLambda) * (collectionModel != null ? collectionModel.getCollectionProbability(pts.t) : (float) pts.getCF() / (float) vocabularySize);
 //            + ((colPTS!=null)?((1.0f-mixingLambda)*(float)colPTS.getCF() / (float)vocabularySize):(0));
 
         return smoothedMLEofTerm;
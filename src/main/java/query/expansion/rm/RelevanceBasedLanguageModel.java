@@ -2,24 +2,41 @@ package query.expansion.rm;
 
 import org.apache.lucene.analysis.Analyzer;
 import org.apache.lucene.document.Document;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.search.IndexSearcher;
 import org.apache.lucene.search.Query;
+import org.apache.lucene.search.ScoreDoc;
 import query.QueryBuilder;
-import query.expansion.Expander;
+import query.expansion.FeedbackExpander;
+import query.expansion.utils.CompactTermVector;
+import query.expansion.utils.DocumentVectorCache;
+import query.expansion.utils.Utils;
 
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
 
 /**
+ * The RLM keeps per-query state, hence a fresh one is created for every expansion. This makes the expander safe to
+ * share between threads.
+ *
  * @author Dan Graur 4/9/2018
  */
 
-public class RelevanceBasedLanguageModel implements Expander {
+public class RelevanceBasedLanguageModel implements FeedbackExpander {
     public enum RMType {
         RM1, RM3
     }
 
+    /**
+     * MAP runs RLM; SPARSE runs the SparseRelevanceModel, which has the same semantics
+     */
+    public enum Engine {
+        MAP, SPARSE
+    }
+
     /**
      * Maximal number of terms of the new expanded query
      */
@@ -34,15 +51,51 @@ public class RelevanceBasedLanguageModel implements Expander {
     private QueryBuilder queryBuilder;
 
     /**
-     * The RML object, which actually implements the algorithms
+     * Maximal number of documents to be considered in the relevant set
+     */
+    private int documentLimit;
+    /**
+     * The analyzer used for creating the initial query and the indexing itself
      */
-    private RLM rlm;
+    private Analyzer analyzer;
+    /**
+     * Query mixing parameter; used by RM3
+     */
+    private float lambda;
+    /**
+     * Document-collection mixing parameter, used for smoothing
+     */
+    private float mixingLambda;
 
     /**
      * Defines the extension algorithm to use
      */
     private RMType rmType;
 
+    /**
+     * Defines the implementation of the relevance model
+     */
+    private Engine engine = Engine.MAP;
+
+    /**
+     * The statistics of the main index, which the document models are smoothed with; null for the feedback documents
+     */
+    private CollectionModel collectionModel;
+
+    /**
+     * The cache of the decoded term vectors of the feedback documents, shared between queries; may be null
+     */
+    private DocumentVectorCache documentVectorCache;
+
+    /**
+     * The pool on which the SPARSE engine computes P(w|R) for large feedback vocabularies; null for sequential only
+     */
+    private ForkJoinPool pool;
+    /**
+     * The feedback vocabulary size from which the pool is used
+     */
+    private int parallelThreshold;
+
     public RelevanceBasedLanguageModel(int termLimit,
                                        int documentLimit,
                                        String targetField,
@@ -54,22 +107,190 @@ public class RelevanceBasedLanguageModel implements Expander {
         this.termLimit = termLimit;
         this.targetField = targetField;
         this.queryBuilder = queryBuilder;
-        this.rlm = new RLM(analyzer, documentLimit, termLimit, lambda, mixingLambda, targetField);
+        this.documentLimit = documentLimit;
+        this.analyzer = analyzer;
+        this.lambda = lambda;
+        this.mixingLambda = mixingLambda;
         this.rmType = rmType;
     }
 
+    public Engine getEngine() {
+        return engine;
+    }
+
+    public void setEngine(Engine engine) {
+        this.engine = engine;
+    }
+
+    public CollectionModel getCollectionModel() {
+        return collectionModel;
+    }
+
+    /**
+     * Smooth the document models with the statistics of the main index (see RLM.setCollectionModel); the model is
+     * shared between queries, hence it must be precomputed
+     *
+     * @param collectionModel the collection model of the target field, or null to smooth with the feedback documents
+     */
+    public void setCollectionModel(CollectionModel collectionModel) {
+        this.collectionModel = collectionModel;
+    }
+
+    public DocumentVectorCache getDocumentVectorCache() {
+        return documentVectorCache;
+    }
+
+    /**
+     * Read the term vectors of the feedback documents (of the live index) through a cache, with either engine
+     *
+     * @param documentVectorCache the cache, or null to decode the term vectors on every query
+     */
+    public void setDocumentVectorCache(DocumentVectorCache documentVectorCache) {
+        this.documentVectorCache = documentVectorCache;
+    }
+
+    /**
+     * Compute P(w|R) on a fork/join pool for deep feedback sets; only applies to the SPARSE engine, whose results do not
+     * depend on the pool size
+     *
+     * @param pool the pool (e.g. the common pool), or null for sequential computation only
+     * @param parallelThreshold the number of feedback terms from which the pool is used
+     */
+    public void setParallelism(ForkJoinPool pool, int parallelThreshold) {
+        this.pool = pool;
+        this.parallelThreshold = parallelThreshold;
+    }
+
     @Override
     public Query expand(String[] query, List<Document> relevantDocuments) throws IOException {
+        if (engine == Engine.SPARSE)
+            return expandSparse(query, readTermVectors(relevantDocuments));
+
+        /* The RML object, which actually implements the algorithms */
+        RLM rlm = new RLM(analyzer, documentLimit, termLimit, lambda, mixingLambda, targetField);
+        rlm.setCollectionModel(collectionModel);
+
         /* Compute the P(Q|d) given the current set of relevant documents */
         rlm.setFeedbackStats(relevantDocuments, query);
 
-        List<Map.Entry<String, WordProbability>> termMap;
+        return buildExpandedQuery(rlm, query);
+    }
+
+    /**
+     * Expand the query from the term vectors of the feedback documents, without building a per-query index. The term
+     * vectors must have been produced with the same analyzer as the one of this expander.
+     */
+    @Override
+    public Query expand(String[] query, ScoreDoc[] feedbackDocs, IndexReader reader) throws IOException {
+        if (engine == Engine.SPARSE)
+            return expandSparse(query, readTermVectors(feedbackDocs, reader));
+
+        RLM rlm = new RLM(analyzer, documentLimit, termLimit, lambda, mixingLambda, targetField);
+        rlm.setCollectionModel(collectionModel);
+        rlm.setDocumentVectorCache(documentVectorCache);
+
+        /* Compute the P(Q|d) given the current set of relevant documents */
+        rlm.setFeedbackStats(feedbackDocs, reader, query);
+
+        return buildExpandedQuery(rlm, query);
+    }
 
+    /**
+     * Run the relevance model, and build a query out of its top terms
+     *
+     * @param rlm the relevance model, whose feedback stats are set
+     * @param query the tokenized query
+     * @return the expanded query
+     * @throws IOException when unable to build the query
+     */
+    private Query buildExpandedQuery(RLM rlm, String[] query) throws IOException {
         /* Choose which of the Relevance Model will be used for expansion */
-        if (rmType == RMType.RM1)
-            termMap = new ArrayList<>(rlm.RM1().entrySet());
-        else
-            termMap = new ArrayList<>(rlm.RM3(query).entrySet());
+        return buildExpandedQuery(rmType == RMType.RM1 ? rlm.RM1() : rlm.RM3(query));
+    }
+
+    /**
+     * Run the sparse relevance model over the term vectors of the feedback documents, and build a query out of its top
+     * terms
+     *
+     * @param query the tokenized query
+     * @param feedbackVectors the term vectors of the feedback documents, in rank order
+     * @return the expanded query
+     * @throws IOException when unable to build the query
+     */
+    private Query expandSparse(String[] query, List<CompactTermVector> feedbackVectors) throws IOException {
+        SparseRelevanceModel model = new SparseRelevanceModel(documentLimit, termLimit, lambda, mixingLambda);
+        model.setParallelism(pool, parallelThreshold);
+        model.setCollectionModel(collectionModel);
+        model.setFeedbackStats(feedbackVectors, query);
+
+        return buildExpandedQuery(rmType == RMType.RM1 ? model.RM1() : model.RM3(query));
+    }
+
+    /**
+     * Read the term vectors of the feedback documents from the live index, through the cache if there is one
+     */
+    private List<CompactTermVector> readTermVectors(ScoreDoc[] feedbackDocs, IndexReader reader) throws IOException {
+        return readTermVectors(feedbackDocs, reader, documentVectorCache);
+    }
+
+    private List<CompactTermVector> readTermVectors(ScoreDoc[] feedbackDocs, IndexReader reader, DocumentVectorCache cache) throws IOException {
+        List<CompactTermVector> feedbackVectors = new ArrayList<>();
+
+        for (int i = 0; i < feedbackDocs.length && i < documentLimit; ++i) {
+            CompactTermVector termVector = CompactTermVector.read(reader, feedbackDocs[i].doc, targetField, cache);
+
+            if (termVector == null)
+                System.err.println("Error readTermVectors(): Term vectors not indexed: " + feedbackDocs[i].doc);
+            else
+                feedbackVectors.add(termVector);
+        }
+
+        return feedbackVectors;
+    }
+
+    /**
+     * Read the term vectors of the feedback documents, through a per-query index of these documents (as RLM does)
+     */
+    private List<CompactTermVector> readTermVectors(List<Document> relevantDocuments) throws IOException {
+        if (collectionModel != null) {
+            /* The feedback documents are not the collection of the smoothing, hence there is no need to index them */
+            List<CompactTermVector> feedbackVectors = new ArrayList<>();
+
+            for (int i = 0; i < relevantDocuments.size() && i < documentLimit; ++i) {
+                String text = relevantDocuments.get(i).get(targetField);
+
+                if (text != null)
+                    feedbackVectors.add(CompactTermVector.analyze(analyzer, targetField, text));
+            }
+
+            return feedbackVectors;
+        }
+
+        IndexSearcher indexSearcher = Utils.createIndexSearcher(Utils.generateRelevantDirectory(relevantDocuments, analyzer, documentLimit));
+
+        try {
+            List<Integer> docIds = Utils.getDocumentIds(indexSearcher, documentLimit);
+            ScoreDoc[] feedbackDocs = new ScoreDoc[docIds.size()];
+
+            for (int i = 0; i < feedbackDocs.length; ++i)
+                feedbackDocs[i] = new ScoreDoc(docIds.get(i), 0.0f);
+
+            /* The per-query index is closed right after, hence its term vectors are not worth caching */
+            return readTermVectors(feedbackDocs, indexSearcher.getIndexReader(), null);
+        } finally {
+            indexSearcher.getIndexReader().close();
+        }
+    }
+
+    /**
+     * Build a query out of the top terms of a relevance model
+     *
+     * @param probabilities the terms of the relevance model, with their probabilities
+     * @return the expanded query
+     * @throws IOException when unable to build the query
+     */
+    private Query buildExpandedQuery(Map<String, WordProbability> probabilities) throws IOException {
+        List<Map.Entry<String, WordProbability>> termMap = new ArrayList<>(probabilities.entrySet());
 
         /* Sort in descending order */
         termMap.sort(
@@ -93,4 +314,20 @@ public class RelevanceBasedLanguageModel implements Expander {
 
         return queryBuilder.buildQuery(targetField, queryString.toString());
     }
-}
\ No newline at end of file
+
+    @Override
+    public String toString() {
+        return "RelevanceBasedLanguageModel{" +
+                "rmType=" + rmType +
+                ", engine=" + engine +
+                ", parallelThreshold=" + (pool == null ? 0 : parallelThreshold) +
+                ", collectionModel=" + (collectionModel != null) +
+                ", termLimit=" + termLimit +
+                ", documentLimit=" + documentLimit +
+                ", lambda=" + lambda +
+                ", mixingLambda=" + mixingLambda +
+                ", targetField='" + targetField + '\'' +
+                ", queryBuilder=" + queryBuilder +
+                '}';
+    }
+}
@@ -0,0 +1,481 @@
+package query.expansion.rm;
+
+import query.expansion.utils.CompactTermVector;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * An alternative engine for the relevance model, with the same RM1/RM3 semantics as RLM. The feedback terms are given
+ * dense int ids when the feedback stats are set; the feedback documents are then held as sparse rows of (term id,
+ * tf(t,d)/|d|) pairs, and the statistics of the terms as flat arrays, hence no map is looked up in the inner loops.
+ *
+ * Since the smoothed P(w|d) is mixingLambda * tf(w,d)/|d| + (1 - mixingLambda) * cf(w)/|C|, P(w|R) splits into a sparse
+ * matrix-vector product over the document rows, weighted by P(Q|d), plus a background term which only depends on the
+ * sum of the P(Q|d):
+ *
+ *     P(w|R) = mixingLambda * sum_d (tf(w,d)/|d|) P(Q|d) + (1 - mixingLambda) * cf(w)/|C| * sum_d P(Q|d)
+ *
+ * The top terms are selected with a bounded heap, instead of sorting the whole vocabulary of the feedback documents.
+ * The probabilities agree with the ones of RLM up to the float rounding order.
+ *
+ * For deep feedback sets, the product can be computed on a fork/join pool (see setParallelism): the feedback vocabulary
+ * is then split into ranges of term ids, and each term sums its (document-ordered) column on its own. As each term is
+ * summed in the same order as in the sequential pass, the results are bitwise identical, whatever the pool size.
+ */
+public class SparseRelevanceModel {
+    /**
+     * number of feedback terms
+     */
+    private int numFeedbackTerms;
+    /**
+     * number of feedback documents
+     */
+    private int numFeedbackDocs;
+    /**
+     * mixing weight, used for doc-col weight adjustment
+     */
+    private float mixingLambda;
+    /**
+     * query mixing parameter; to be used for RM3
+     */
+    private float lambda;
+
+    /**
+     * The feedback terms, by id
+     */
+    private String[] terms;
+    /**
+     * The collection frequency of each feedback term, over the feedback documents, by term id
+     */
+    private long[] cf;
+    /**
+     * The size of the feedback "collection", i.e. the sum of the lengths of the feedback documents
+     */
+    private long vocabularySize;
+    /**
+     * The document rows: the entries of document d are in [rowStart[d], rowStart[d + 1])
+     */
+    private int[] rowStart;
+    /**
+     * The term id of each entry of the rows
+     */
+    private int[] rowTerms;
+    /**
+     * The tf(t,d)/|d| of each entry of the rows
+     */
+    private float[] rowWeights;
+    /**
+     * P(Q|d), by document
+     */
+    private float[] pQGivenD;
+    /**
+     * The statistics of the main index, which the document models are smoothed with; if null, they are smoothed with
+     * the statistics of the feedback documents
+     */
+    private CollectionModel collectionModel;
+    /**
+     * The pool on which P(w|R) is computed, or null for the calling thread only
+     */
+    private ForkJoinPool pool;
+    /**
+     * The number of feedback terms below which P(w|R) is computed sequentially; also the size of a fork/join task
+     */
+    private int parallelThreshold;
+
+    public SparseRelevanceModel(int numFeedbackDocs, int numFeedbackTerms, float lambda, float mixingLambda) {
+        this.numFeedbackDocs = numFeedbackDocs;
+        this.numFeedbackTerms = numFeedbackTerms;
+        this.lambda = lambda;
+        this.mixingLambda = mixingLambda;
+    }
+
+    /**
+     * Compute P(w|R) on a fork/join pool when the feedback vocabulary is large enough
+     *
+     * @param pool the pool, or null for sequential computation only
+     * @param parallelThreshold the number of feedback terms from which the pool is used; the vocabulary is split into
+     *                          tasks of at most this many terms
+     */
+    public void setParallelism(ForkJoinPool pool, int parallelThreshold) {
+        this.pool = pool;
+        this.parallelThreshold = Math.max(1, parallelThreshold);
+    }
+
+    /**
+     * Smooth the document models with the statistics of the main index, as RLM.setCollectionModel does
+     *
+     * @param collectionModel the collection model of the target field, or null to smooth with the feedback documents
+     */
+    public void setCollectionModel(CollectionModel collectionModel) {
+        this.collectionModel = collectionModel;
+    }
+
+    /**
+     * Build the sparse representation of the feedback documents, and compute P(Q|d) for each of them
+     *
+     * @param feedbackVectors the term vectors of the feedback documents, in rank order; only the first numFeedbackDocs
+     *                        are used
+     * @param analyzedQuery   the tokenized query itself
+     */
+    public void setFeedbackStats(List<CompactTermVector> feedbackVectors, String[] analyzedQuery) {
+        int docNumber = Math.min(feedbackVectors.size(), numFeedbackDocs);
+        int entries = 0;
+
+        for (int d = 0; d < docNumber; ++d)
+            entries += feedbackVectors.get(d).size();
+
+        /* Assign the term ids, and lay the rows out */
+        Map<String, Integer> termIds = new HashMap<>(2 * entries);
+        List<String> termList = new ArrayList<>();
+        long[] termCf = new long[Math.max(entries, 1)];
+
+        rowStart = new int[docNumber + 1];
+        rowTerms = new int[entries];
+        rowWeights = new float[entries];
+        vocabularySize = 0;
+
+        int entry = 0;
+
+        for (int d = 0; d < docNumber; ++d) {
+            CompactTermVector termVector = feedbackVectors.get(d);
+            rowStart[d] = entry;
+            vocabularySize += termVector.getLength();
+
+            for (int i = 0; i < termVector.size(); ++i) {
+                Integer termId = termIds.get(termVector.getTerm(i));
+
+                if (termId == null) {
+                    termId = termList.size();
+                    termIds.put(termVector.getTerm(i), termId);
+                    termList.add(termVector.getTerm(i));
+                }
+
+                termCf[termId] += termVector.getFreq(i);
+                rowTerms[entry] = termId;
+                rowWeights[entry] = (float) termVector.getFreq(i) / (float) termVector.getLength();
+                ++entry;
+            }
+        }
+
+        rowStart[docNumber] = entry;
+        terms = termList.toArray(new String[0]);
+        cf = termCf;
+
+        if (collectionModel != null) {
+            for (int t = 0; t < terms.length; ++t)
+                cf[t] = collectionModel.getCollectionFrequency(terms[t]);
+
+            vocabularySize = collectionModel.getCollectionLength();
+        }
+
+        computeQueryLikelihoods(termIds, analyzedQuery);
+    }
+
+    /**
+     * Compute P(Q|d) = prod_{q in Q} P(q|d) for each feedback document; query terms which do not occur in the feedback
+     * documents (or in the collection, with a collection model) contribute a factor of 1, as in RLM
+     */
+    private void computeQueryLikelihoods(Map<String, Integer> termIds, String[] analyzedQuery) {
+        int docNumber = rowStart.length - 1;
+
+        /* The ids of the query terms, -1 for the ones which are not feedback terms */
+        int[] queryTermIds = new int[analyzedQuery.length];
+
+        /* The factor of the query terms which do not occur in any feedback document: only the background is left */
+        float unmatchedFactor = 1;
+
+        for (int i = 0; i < analyzedQuery.length; ++i) {
+            Integer termId = termIds.get(analyzedQuery[i]);
+            queryTermIds[i] = termId == null ? -1 : termId;
+
+            if (termId == null && collectionModel != null && collectionModel.getCollectionFrequency(analyzedQuery[i]) > 0)
+                unmatchedFactor *= (1.0f - mixingLambda) * collectionModel.getCollectionProbability(analyzedQuery[i]);
+        }
+
+        /* Dense scratch row, reset after each document */
+        float[] docWeights = new float[terms.length];
+        pQGivenD = new float[docNumber];
+
+        for (int d = 0; d < docNumber; ++d) {
+            for (int e = rowStart[d]; e < rowStart[d + 1]; ++e)
+                docWeights[rowTerms[e]] = rowWeights[e];
+
+            float p_Q_GivenD = unmatchedFactor;
+
+            for (int termId : queryTermIds)
+                if (termId >= 0)
+                    p_Q_GivenD *= mixingLambda * docWeights[termId] + (1.0f - mixingLambda) * (float) cf[termId] / (float) vocabularySize;
+
+            pQGivenD[d] = p_Q_GivenD;
+
+            for (int e = rowStart[d]; e < rowStart[d + 1]; ++e)
+                docWeights[rowTerms[e]] = 0.0f;
+        }
+    }
+
+    /**
+     * Compute P(w|R) for every feedback term, as one pass over the document rows (or over the term columns, on the
+     * fork/join pool)
+     *
+     * @return P(w|R), by term id (see getTerm)
+     */
+    public float[] computeTermProbabilities() {
+        float[] pWGivenR = new float[terms.length];
+        float pQSum = 0.0f;
+
+        for (float pQ : pQGivenD)
+            pQSum += pQ;
+
+        /* The background term is the same for each document, hence it factors out of the sum */
+        float background = (1.0f - mixingLambda) * pQSum / (float) vocabularySize;
+
+        if (pool != null && terms.length >= parallelThreshold) {
+            pool.invoke(new TermRangeTask(new Columns(), pWGivenR, background, 0, terms.length));
+            return pWGivenR;
+        }
+
+        /* Sparse matrix-vector product: accumulate tf(w,d)/|d| * P(Q|d), row by row */
+        for (int d = 0; d < pQGivenD.length; ++d) {
+            float pQ = pQGivenD[d];
+
+            for (int e = rowStart[d]; e < rowStart[d + 1]; ++e)
+                pWGivenR[rowTerms[e]] += rowWeights[e] * pQ;
+        }
+
+        for (int t = 0; t < pWGivenR.length; ++t)
+            pWGivenR[t] = mixingLambda * pWGivenR[t] + background * (float) cf[t];
+
+        return pWGivenR;
+    }
+
+    /**
+     * The document rows, transposed into term columns; the entries of each column are in increasing document order,
+     * i.e. in the order in which the row by row pass adds them up
+     */
+    private class Columns {
+        private final int[] columnStart = new int[terms.length + 1];
+        private final int[] columnDocs = new int[rowTerms.length];
+        private final float[] columnWeights = new float[rowTerms.length];
+
+        private Columns() {
+            for (int termId : rowTerms)
+                ++columnStart[termId + 1];
+
+            for (int t = 0; t < terms.length; ++t)
+                columnStart[t + 1] += columnStart[t];
+
+            int[] next = Arrays.copyOf(columnStart, terms.length);
+
+            for (int d = 0; d < pQGivenD.length; ++d)
+                for (int e = rowStart[d]; e < rowStart[d + 1]; ++e) {
+                    int slot = next[rowTerms[e]]++;
+                    columnDocs[slot] = d;
+                    columnWeights[slot] = rowWeights[e];
+                }
+        }
+    }
+
+    /**
+     * Computes P(w|R) for a range of term ids, splitting it in halves down to the threshold
+     */
+    private class TermRangeTask extends RecursiveAction {
+        private final Columns columns;
+        private final float[] pWGivenR;
+        private final float background;
+        private final int from;
+        private final int to;
+
+        private TermRangeTask(Columns columns, float[] pWGivenR, float background, int from, int to) {
+            this.columns = columns;
+            this.pWGivenR = pWGivenR;
+            this.background = background;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from > parallelThreshold) {
+                int middle = (from + to) >>> 1;
+                invokeAll(
+                        new TermRangeTask(columns, pWGivenR, background, from, middle),
+                        new TermRangeTask(columns, pWGivenR, background, middle, to)
+                );
+                return;
+            }
+
+            for (int t = from; t < to; ++t) {
+                float sum = 0.0f;
+
+                for (int e = columns.columnStart[t]; e < columns.columnStart[t + 1]; ++e)
+                    sum += columns.columnWeights[e] * pQGivenD[columns.columnDocs[e]];
+
+                pWGivenR[t] = mixingLambda * sum + background * (float) cf[t];
+            }
+        }
+    }
+
+    /**
+     * Select the ids of the terms with the highest probabilities, with a bounded min-heap
+     *
+     * @param probabilities the probabilities, by term id
+     * @param limit the number of terms to select
+     * @return the ids of the selected terms, in decreasing order of probability
+     */
+    private static int[] topTerms(float[] probabilities, int limit) {
+        int size = Math.min(limit, probabilities.length);
+        int[] heap = new int[size];
+        int heapSize = 0;
+
+        for (int t = 0; t < probabilities.length; ++t) {
+            if (heapSize < size) {
+                heap[heapSize] = t;
+                siftUp(heap, heapSize++, probabilities);
+            } else if (size > 0 && probabilities[t] > probabilities[heap[0]]) {
+                heap[0] = t;
+                siftDown(heap, heapSize, probabilities);
+            }
+        }
+
+        /* Pop the minimum repeatedly, filling the result from the end */
+        int[] top = new int[heapSize];
+
+        while (heapSize > 0) {
+            top[heapSize - 1] = heap[0];
+            heap[0] = heap[--heapSize];
+            siftDown(heap, heapSize, probabilities);
+        }
+
+        return top;
+    }
+
+    private static void siftUp(int[] heap, int i, float[] probabilities) {
+        int term = heap[i];
+
+        while (i > 0) {
+            int parent = (i - 1) >>> 1;
+
+            if (probabilities[heap[parent]] <= probabilities[term])
+                break;
+
+            heap[i] = heap[parent];
+            i = parent;
+        }
+
+        heap[i] = term;
+    }
+
+    private static void siftDown(int[] heap, int heapSize, float[] probabilities) {
+        if (heapSize == 0)
+            return;
+
+        int term = heap[0];
+        int i = 0;
+
+        while (2 * i + 1 < heapSize) {
+            int child = 2 * i + 1;
+
+            if (child + 1 < heapSize && probabilities[heap[child + 1]] < probabilities[heap[child]])
+                ++child;
+
+            if (probabilities[term] <= probabilities[heap[child]])
+                break;
+
+            heap[i] = heap[child];
+            i = child;
+        }
+
+        heap[i] = term;
+    }
+
+    /**
+     * Compute the candidate expanded query terms as a map of terms -> probability. Unlike RLM.RM1, only the top
+     * (numFeedbackTerms + 1) terms are returned, as these are the only ones the expansion uses.
+     *
+     * @return the top terms, in decreasing order of probability
+     */
+    public Map<String, WordProbability> RM1() {
+        float[] pWGivenR = computeTermProbabilities();
+        Map<String, WordProbability> res = new LinkedHashMap<>();
+
+        for (int t : topTerms(pWGivenR, numFeedbackTerms + 1))
+            res.put(terms[t], new WordProbability(terms[t], pWGivenR[t]));
+
+        return res;
+    }
+
+    /**
+     * Interpolate the top terms of RM1 with the query, as RLM.RM3 does
+     *
+     * @param analyzedQuery the tokenized query itself
+     * @return the terms of the expanded query, with their probabilities
+     */
+    public Map<String, WordProbability> RM3(String[] analyzedQuery) {
+        Map<String, WordProbability> res = RM1();
+
+        /* Normalize the top terms, and weight them by lambda */
+        float normalizationFactor = 0.0f;
+
+        for (WordProbability probability : res.values())
+            normalizationFactor += probability.p_w_given_R;
+
+        float lambdaNormalizationFactor = 0.0f;
+
+        for (WordProbability probability : res.values()) {
+            probability.p_w_given_R = lambda * (probability.p_w_given_R / normalizationFactor);
+            lambdaNormalizationFactor += probability.p_w_given_R;
+        }
+
+        /* Mix in the query: P(w|R) += (1 - lambda) * P(w|Q), with the same normalization as RLM.RM3 */
+        for (String qTerm : analyzedQuery) {
+            float probability = (1.0f - lambda) * queryLikelihood(analyzedQuery, qTerm);
+            WordProbability wordProbability = res.get(qTerm);
+
+            if (wordProbability != null) {
+                wordProbability.p_w_given_R += probability;
+                lambdaNormalizationFactor += probability;
+            } else
+                res.put(qTerm, new WordProbability(qTerm, probability));
+        }
+
+        for (WordProbability probability : res.values())
+            probability.p_w_given_R /= lambdaNormalizationFactor;
+
+        return res;
+    }
+
+    /**
+     * @return tf(qTerm, Q) / |Q|
+     */
+    private static float queryLikelihood(String[] qTerms, String qTerm) {
+        int count = 0;
+
+        for (String queryTerm : qTerms)
+            if (qTerm.equals(queryTerm))
+                ++count;
+
+        return ((float) count / (float) qTerms.length);
+    }
+
+    /**
+     * @param termId the id of a feedback term
+     * @return the term
+     */
+    public String getTerm(int termId) {
+        return terms[termId];
+    }
+
+    /**
+     * @return the number of distinct feedback terms
+     */
+    public int getFeedbackTermCount() {
+        return terms == null ? 0 : terms.length;
+    }
+}
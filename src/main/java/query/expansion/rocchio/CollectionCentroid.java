@@ -0,0 +1,197 @@
+package query.expansion.rocchio;
+
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.MultiFields;
+import org.apache.lucene.index.Terms;
+import org.apache.lucene.index.TermsEnum;
+import org.apache.lucene.search.similarities.ClassicSimilarity;
+import org.apache.lucene.util.BytesRef;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.PriorityQueue;
+
+/**
+ * The centroid of the TF-IDF vectors of all the documents of the collection, truncated to its top terms. The mean
+ * TF-IDF of a term over the N documents has a closed form, cf * idf / N, hence the centroid is built in a single pass
+ * over the terms dictionary, without reading any document.
+ *
+ * The IDF is the one of the ClassicSimilarity, as for Rocchio. The centroid is persisted to a file, tagged with the
+ * generation of the index commit it was built from; see openOrBuild.
+ */
+public class CollectionCentroid {
+    private static final int MAGIC = 0x43434E54;
+    private static final int VERSION = 1;
+
+    /**
+     * The generation of the index commit the centroid was built from; -1 if the reader was not a DirectoryReader
+     */
+    private final long generation;
+    /**
+     * The number of documents of the collection
+     */
+    private final long docCount;
+    private final String field;
+    /**
+     * The mean TF-IDF of the top terms; the other terms are taken as 0
+     */
+    private final Map<String, Float> weights;
+
+    private CollectionCentroid(long generation, long docCount, String field, Map<String, Float> weights) {
+        this.generation = generation;
+        this.docCount = docCount;
+        this.field = field;
+        this.weights = weights;
+    }
+
+    /**
+     * Build the centroid of a field
+     *
+     * @param reader the reader of the index
+     * @param field the field
+     * @param size the number of terms kept, by decreasing mean TF-IDF
+     * @return the centroid
+     * @throws IOException if the terms cannot be read
+     */
+    public static CollectionCentroid build(IndexReader reader, String field, int size) throws IOException {
+        Terms fieldTerms = MultiFields.getTerms(reader, field);
+
+        if (fieldTerms == null)
+            throw new IllegalArgumentException("Field " + field + " has no terms");
+
+        long docCount = reader.maxDoc();
+        long generation = reader instanceof DirectoryReader ? ((DirectoryReader) reader).getIndexCommit().getGeneration() : -1;
+        ClassicSimilarity similarity = new ClassicSimilarity();
+
+        /* Keep the top terms in a min-heap, by weight */
+        PriorityQueue<Map.Entry<String, Float>> top = new PriorityQueue<>(size + 1, Map.Entry.comparingByValue());
+        TermsEnum iterator = fieldTerms.iterator();
+        BytesRef byteRef;
+
+        while ((byteRef = iterator.next()) != null) {
+            float weight = iterator.totalTermFreq() * similarity.idf(iterator.docFreq(), docCount) / docCount;
+
+            if (top.size() < size || weight > top.peek().getValue()) {
+                top.add(new HashMap.SimpleEntry<>(byteRef.utf8ToString(), weight));
+
+                if (top.size() > size)
+                    top.poll();
+            }
+        }
+
+        Map<String, Float> weights = new HashMap<>(2 * top.size());
+
+        for (Map.Entry<String, Float> entry : top)
+            weights.put(entry.getKey(), entry.getValue());
+
+        return new CollectionCentroid(generation, docCount, field, weights);
+    }
+
+    /**
+     * Open a persisted centroid, and (re)build it first if it is missing, or if it was built from another commit of the
+     * index or for another field (a persisted centroid is reused whatever its size)
+     *
+     * @param reader the reader of the index
+     * @param field the field
+     * @param size the number of terms kept, when building
+     * @param file the file of the centroid
+     * @return the centroid, current with the reader
+     * @throws IOException if the centroid cannot be built, read or written
+     */
+    public static CollectionCentroid openOrBuild(DirectoryReader reader, String field, int size, Path file) throws IOException {
+        if (Files.exists(file)) {
+            CollectionCentroid centroid = read(file);
+
+            if (centroid.generation == reader.getIndexCommit().getGeneration() && centroid.field.equals(field))
+                return centroid;
+
+            System.out.println("> Collection centroid of generation " + centroid.generation + " is stale; rebuilding");
+        }
+
+        long start = System.nanoTime();
+        CollectionCentroid centroid = build(reader, field, size);
+        centroid.write(file);
+        System.out.println("> Collection centroid built in " + ((System.nanoTime() - start) / 1_000_000.0) + " ms");
+
+        return centroid;
+    }
+
+    public static CollectionCentroid read(Path file) throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file)))) {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION)
+                throw new IOException("Not a collection centroid (or an unsupported version): " + file);
+
+            long generation = in.readLong();
+            long docCount = in.readLong();
+            String field = in.readUTF();
+            int size = in.readInt();
+            Map<String, Float> weights = new HashMap<>(2 * size);
+
+            for (int i = 0; i < size; ++i)
+                weights.put(in.readUTF(), in.readFloat());
+
+            return new CollectionCentroid(generation, docCount, field, weights);
+        }
+    }
+
+    public void write(Path file) throws IOException {
+        if (file.getParent() != null)
+            Files.createDirectories(file.getParent());
+
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(file)))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeLong(generation);
+            out.writeLong(docCount);
+            out.writeUTF(field);
+            out.writeInt(weights.size());
+
+            for (Map.Entry<String, Float> entry : weights.entrySet()) {
+                out.writeUTF(entry.getKey());
+                out.writeFloat(entry.getValue());
+            }
+        }
+    }
+
+    /**
+     * @param term a term
+     * @return the mean TF-IDF of the term over the collection; 0 if the term is not among the top terms
+     */
+    public float getWeight(String term) {
+        return weights.getOrDefault(term, 0.0f);
+    }
+
+    public long getDocCount() {
+        return docCount;
+    }
+
+    public long getGeneration() {
+        return generation;
+    }
+
+    public String getField() {
+        return field;
+    }
+
+    public int size() {
+        return weights.size();
+    }
+
+    @Override
+    public String toString() {
+        return "CollectionCentroid{" +
+                "field='" + field + '\'' +
+                ", generation=" + generation +
+                ", docCount=" + docCount +
+                ", size=" + weights.size() +
+                '}';
+    }
+}
@@ -4,21 +4,42 @@ import org.apache.lucene.analysis.Analyzer;
 import org.apache.lucene.document.Document;
 import org.apache.lucene.index.*;
 import org.apache.lucene.search.Query;
+import org.apache.lucene.search.ScoreDoc;
 import org.apache.lucene.search.similarities.ClassicSimilarity;
 import org.apache.lucene.store.Directory;
 import query.QueryBuilder;
-import query.expansion.Expander;
+import query.expansion.FeedbackExpander;
+import query.expansion.rm.CollectionModel;
+import query.expansion.utils.CompactTermVector;
+import query.expansion.utils.DocumentVectorCache;
+import query.expansion.utils.TermStatisticsResolver;
 import query.expansion.utils.Utils;
 
 import java.io.IOException;
 import java.util.*;
+import java.util.function.ToLongFunction;
 
 /**
  * This is a modern version of Rocchio which does not make use of the gamma (considering the (ona average) large size of irrelevant documents, this is probably a good idea).
+ * The gamma can still be brought back cheaply, from a precomputed CollectionCentroid; see setNegativeFeedback.
  *
  * @author Dan Graur 4/11/2018
  */
-public class Rocchio implements Expander {
+public class Rocchio implements FeedbackExpander {
+    /**
+     * The statistics the IDF of the terms is computed from
+     */
+    public enum IdfSource {
+        /**
+         * The feedback documents alone (the original behaviour)
+         */
+        FEEDBACK,
+        /**
+         * The whole collection, i.e. the main index
+         */
+        COLLECTION
+    }
+
     /**
      * Alpha weight (see the Rocchio algorithm)
      */
@@ -47,6 +68,26 @@ public class Rocchio implements Expander {
      * The query builder, used to build the Lucene query for the expanded plain query
      */
     private QueryBuilder queryBuilder;
+    /**
+     * The cache of the decoded term vectors of the feedback documents, shared between queries; may be null
+     */
+    private DocumentVectorCache documentVectorCache;
+    /**
+     * The statistics the IDF is computed from
+     */
+    private IdfSource idfSource = IdfSource.FEEDBACK;
+    /**
+     * The statistics of the collection, for the IDF of the Document based expansion; may be null
+     */
+    private CollectionModel collectionModel;
+    /**
+     * The centroid of the collection, from which the non-relevant centroid is approximated; null for no gamma
+     */
+    private CollectionCentroid collectionCentroid;
+    /**
+     * Gamma weight (see the Rocchio algorithm)
+     */
+    private float gamma;
 
     public Rocchio(float alpha, float beta, int termLimit, int documentLimit, String targetField, Analyzer analyzer, QueryBuilder queryBuilder) {
         this.alpha = alpha;
@@ -58,7 +99,92 @@ public class Rocchio implements Expander {
         this.queryBuilder = queryBuilder;
     }
 
+    public DocumentVectorCache getDocumentVectorCache() {
+        return documentVectorCache;
+    }
+
+    /**
+     * Read the term vectors of the feedback documents (of the live index) through a cache
+     *
+     * @param documentVectorCache the cache, or null to decode the term vectors on every query
+     */
+    public void setDocumentVectorCache(DocumentVectorCache documentVectorCache) {
+        this.documentVectorCache = documentVectorCache;
+    }
+
+    public IdfSource getIdfSource() {
+        return idfSource;
+    }
+
+    /**
+     * Choose the statistics of the IDF. With COLLECTION, the expansion from doc ids resolves the df of the feedback
+     * terms in the main index; the Document based expansion requires a collection model (see setCollectionModel), and
+     * otherwise falls back to the per-query index of the feedback documents.
+     *
+     * @param idfSource the source of the IDF
+     */
+    public void setIdfSource(IdfSource idfSource) {
+        this.idfSource = idfSource;
+    }
+
+    public CollectionModel getCollectionModel() {
+        return collectionModel;
+    }
+
+    public void setCollectionModel(CollectionModel collectionModel) {
+        this.collectionModel = collectionModel;
+    }
+
+    public CollectionCentroid getCollectionCentroid() {
+        return collectionCentroid;
+    }
+
+    public float getGamma() {
+        return gamma;
+    }
+
+    /**
+     * Subtract the (gamma weighted) centroid of the non-relevant documents, taken as all the documents of the collection
+     * but the feedback ones: (N * C - sum(R)) / (N - |R|), where C is the collection centroid. Only the terms of the
+     * feedback documents are weighted, hence the cost per query does not depend on the size of the centroid. The
+     * feedback vector is then the mean of the feedback documents, instead of their sum, and the query vector is scaled
+     * alike, such that alpha keeps its weight against beta.
+     *
+     * The centroid is in the TF-IDF space of the collection, hence this requires the COLLECTION IdfSource (and, for the
+     * Document based expansion, a collection model); otherwise, expand throws an IllegalStateException. A gamma of 0
+     * is plain Rocchio, up to a common scale of all the weights.
+     *
+     * @param collectionCentroid the centroid of the collection, or null for no negative feedback
+     * @param gamma the gamma weight
+     */
+    public void setNegativeFeedback(CollectionCentroid collectionCentroid, float gamma) {
+        this.collectionCentroid = collectionCentroid;
+        this.gamma = gamma;
+    }
+
+    @Override
     public Query expand(String[] query, List<Document> relevantDocuments) throws IOException {
+        if (collectionCentroid != null && idfSource != IdfSource.COLLECTION)
+            throw new IllegalStateException("The negative feedback of the collection centroid requires the COLLECTION IdfSource");
+
+        /* The per-query index has no collection statistics, hence it cannot weigh the centroid */
+        if (collectionCentroid != null && collectionModel == null)
+            throw new IllegalStateException("The negative feedback of the collection centroid requires a collection model on the Document path");
+
+        /* With the collection statistics at hand, analyze the feedback documents instead of indexing them */
+        if (idfSource == IdfSource.COLLECTION && collectionModel != null) {
+            List<CompactTermVector> termVectors = new ArrayList<>();
+
+            for (int i = 0; i < relevantDocuments.size() && i < documentLimit; ++i) {
+                String text = relevantDocuments.get(i).get(targetField);
+
+                if (text != null)
+                    termVectors.add(CompactTermVector.analyze(analyzer, targetField, text));
+            }
+
+            return expandFromTermVectors(query, termVectors, collectionModel::getDocumentFrequency, collectionModel.getDocumentCount());
+        }
+
         /* Get the set of words for the query */
         Set<String> queryTerms = new HashSet<>(Arrays.asList(query));
 
@@ -76,6 +202,104 @@ public class Rocchio implements Expander {
 //
 //        System.exit(1);
 
+        return buildExpandedQuery(allTermFreq, queryTermFreq);
+    }
+
+    /**
+     * Expand the query from the term vectors of the feedback documents, read from the live index instead of a per-query
+     * index of the feedback documents. The term vectors must have been produced with the same analyzer as the one of
+     * this expander.
+     */
+    @Override
+    public Query expand(String[] query, ScoreDoc[] feedbackDocs, IndexReader reader) throws IOException {
+        if (collectionCentroid != null && idfSource != IdfSource.COLLECTION)
+            throw new IllegalStateException("The negative feedback of the collection centroid requires the COLLECTION IdfSource");
+
+        List<CompactTermVector> termVectors = new ArrayList<>();
+
+        for (int i = 0; i < feedbackDocs.length && i < documentLimit; ++i) {
+            CompactTermVector termVector = CompactTermVector.read(reader, feedbackDocs[i].doc, targetField, documentVectorCache);
+
+            if (termVector != null)
+                termVectors.add(termVector);
+        }
+
+        if (idfSource == IdfSource.FEEDBACK)
+            return expandFromTermVectors(query, termVectors, null, 0);
+
+        /* The IDF of the main index, resolved in one sorted pass over its segments */
+        TermStatisticsResolver resolver = TermStatisticsResolver.forReader(reader, targetField);
+        Set<String> feedbackTerms = new HashSet<>();
+
+        for (CompactTermVector termVector : termVectors)
+            for (int j = 0; j < termVector.size(); ++j)
+                feedbackTerms.add(termVector.getTerm(j));
+
+        TermStatisticsResolver.Statistics statistics = resolver.resolve(feedbackTerms);
+
+        return expandFromTermVectors(query, termVectors, statistics::docFreq, resolver.getDocCount());
+    }
+
+    /**
+     * Accumulate the TF-IDF centroid of the feedback term vectors, and combine it with the query
+     *
+     * @param query the analyzed query terms
+     * @param termVectors the term vectors of the feedback documents
+     * @param docFreq the df of a term in the collection, or null for the df within the feedback set
+     * @param docCount the number of documents of the collection; ignored if docFreq is null
+     * @return the expanded query
+     * @throws IOException when unable to build the query
+     */
+    private Query expandFromTermVectors(String[] query, List<CompactTermVector> termVectors, ToLongFunction<String> docFreq, long docCount) throws IOException {
+        /* Gather the collection frequency and the document frequency of each term, within the feedback set */
+        Map<String, long[]> feedbackStats = new HashMap<>();
+
+        for (CompactTermVector termVector : termVectors)
+            for (int j = 0; j < termVector.size(); ++j) {
+                long[] stats = feedbackStats.computeIfAbsent(termVector.getTerm(j), (String term) -> new long[2]);
+                stats[0] += termVector.getFreq(j);
+                stats[1] += 1;
+            }
+
+        /* Declare the similarity which will allow us to compute the IDF */
+        ClassicSimilarity similarity = new ClassicSimilarity();
+        Set<String> queryTerms = new HashSet<>(Arrays.asList(query));
+        Map<String, Float> allTermFreq = new HashMap<>();
+        Map<String, Float> queryTermFreq = new HashMap<>();
+
+        for (Map.Entry<String, long[]> entry : feedbackStats.entrySet()) {
+            float idf = docFreq == null ?
+                    similarity.idf(entry.getValue()[1], termVectors.size()) :
+                    similarity.idf(docFreq.applyAsLong(entry.getKey()), docCount);
+            float tfIdf = entry.getValue()[0] * idf;
+            boolean centroidMode = collectionCentroid != null && docFreq != null;
+
+            if (!centroidMode) {
+                allTermFreq.put(entry.getKey(), beta * tfIdf);
+            } else {
+                /* The terms outside of the (truncated) centroid are taken as absent from the non-relevant documents */
+                float nonRelevant = Math.max(0.0f, (docCount * collectionCentroid.getWeight(entry.getKey()) - tfIdf) / (docCount - termVectors.size()));
+                allTermFreq.put(entry.getKey(), beta * tfIdf / termVectors.size() - gamma * nonRelevant);
+            }
+
+            /* In centroid mode, the query vector is normalized like the feedback vector, as to keep alpha against beta */
+            if (queryTerms.contains(entry.getKey()))
+                queryTermFreq.put(entry.getKey(), centroidMode ? tfIdf / termVectors.size() : tfIdf);
+        }
+
+        return buildExpandedQuery(allTermFreq, queryTermFreq);
+    }
+
+    /**
+     * Combine the (beta weighted) feedback vector with the (alpha weighted) query vector, and build a query out of the
+     * top weighted terms
+     *
+     * @param allTermFreq the beta weighted TF-IDF of the terms of the feedback set; modified by this method
+     * @param queryTermFreq the TF-IDF of the query terms within the feedback set
+     * @return the expanded query
+     * @throws IOException when unable to build the query
+     */
+    private Query buildExpandedQuery(Map<String, Float> allTermFreq, Map<String, Float> queryTermFreq) throws IOException {
         for (Map.Entry<String, Float> term : queryTermFreq.entrySet()) {
             /* Multiply the current entry with alpha */
             float modifiedFreq = term.getValue() * alpha;
@@ -108,6 +332,22 @@ public class Rocchio implements Expander {
         return queryBuilder.buildQuery(targetField, queryString.toString());
     }
 
+    @Override
+    public String toString() {
+        return "Rocchio{" +
+                "alpha=" + alpha +
+                ", beta=" + beta +
+                ", termLimit=" + termLimit +
+                ", documentLimit=" + documentLimit +
+                ", targetField='" + targetField + '\'' +
+                ", idfSource=" + idfSource +
+                ", collectionModel=" + (collectionModel != null) +
+                ", gamma=" + (collectionCentroid == null ? 0.0f : gamma) +
+                ", collectionCentroid=" + collectionCentroid +
+                ", queryBuilder=" + queryBuilder +
+                '}';
+    }
+
     /**
      * Creates an iterable list of terms and TF-IDF computer frequencies, as extracted from the passed Directory
      *
@@ -0,0 +1,156 @@
+package query.expansion.utils;
+
+import org.apache.lucene.analysis.Analyzer;
+import org.apache.lucene.analysis.TokenStream;
+import org.apache.lucene.analysis.tokenattributes.CharTermAttribute;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.Terms;
+import org.apache.lucene.index.TermsEnum;
+import org.apache.lucene.util.BytesRef;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+/**
+ * The term vector of a single document, decoded once into parallel arrays: the terms (in the index order) and their
+ * frequencies within the document.
+ */
+public class CompactTermVector {
+    /**
+     * The terms of the document, sorted
+     */
+    private final String[] terms;
+    /**
+     * The frequency of each term within the document
+     */
+    private final int[] freqs;
+    /**
+     * The length of the document, i.e. the sum of the frequencies
+     */
+    private final long length;
+
+    public CompactTermVector(String[] terms, int[] freqs, long length) {
+        this.terms = terms;
+        this.freqs = freqs;
+        this.length = length;
+    }
+
+    /**
+     * Decode the term vector of a document
+     *
+     * @param reader the reader holding the document
+     * @param docId the doc id of the document
+     * @param field the field whose term vector is read
+     * @return the term vector, or null if term vectors were not indexed for the field
+     * @throws IOException if the term vector cannot be read
+     */
+    public static CompactTermVector read(IndexReader reader, int docId, String field) throws IOException {
+        Terms termVector = reader.getTermVector(docId, field);
+
+        if (termVector == null)
+            return null;
+
+        /* The size of a term vector is known, but be defensive about codecs which do not report it */
+        int capacity = termVector.size() > 0 ? (int) termVector.size() : 16;
+        String[] terms = new String[capacity];
+        int[] freqs = new int[capacity];
+        long length = 0;
+        int n = 0;
+
+        TermsEnum iterator = termVector.iterator();
+        BytesRef byteRef;
+
+        while ((byteRef = iterator.next()) != null) {
+            if (n == terms.length) {
+                terms = Arrays.copyOf(terms, 2 * n);
+                freqs = Arrays.copyOf(freqs, 2 * n);
+            }
+
+            terms[n] = byteRef.utf8ToString();
+            freqs[n] = (int) iterator.totalTermFreq();
+            length += freqs[n];
+            ++n;
+        }
+
+        if (n < terms.length) {
+            terms = Arrays.copyOf(terms, n);
+            freqs = Arrays.copyOf(freqs, n);
+        }
+
+        return new CompactTermVector(terms, freqs, length);
+    }
+
+    /**
+     * Get the term vector of a document through a cache
+     *
+     * @param reader the reader holding the document
+     * @param docId the doc id of the document
+     * @param field the field whose term vector is read
+     * @param cache the cache of the decoded term vectors; if null, the term vector is decoded
+     * @return the term vector, or null if term vectors were not indexed for the field
+     * @throws IOException if the term vector cannot be read
+     */
+    public static CompactTermVector read(IndexReader reader, int docId, String field, DocumentVectorCache cache) throws IOException {
+        return cache != null ? cache.get(reader, docId, field) : read(reader, docId, field);
+    }
+
+    /**
+     * Build the term vector of a text, by analyzing it; this is what the index would have stored as the term vector of
+     * the text, if it was indexed with the same analyzer
+     *
+     * @param analyzer the analyzer of the field
+     * @param field the field the text belongs to
+     * @param text the text
+     * @return the term vector
+     * @throws IOException if the text cannot be analyzed
+     */
+    public static CompactTermVector analyze(Analyzer analyzer, String field, String text) throws IOException {
+        SortedMap<String, Integer> counts = new TreeMap<>();
+
+        try (TokenStream tokenStream = analyzer.tokenStream(field, text)) {
+            CharTermAttribute termAttribute = tokenStream.addAttribute(CharTermAttribute.class);
+            tokenStream.reset();
+
+            while (tokenStream.incrementToken())
+                counts.merge(termAttribute.toString(), 1, Integer::sum);
+
+            tokenStream.end();
+        }
+
+        String[] terms = new String[counts.size()];
+        int[] freqs = new int[counts.size()];
+        long length = 0;
+        int n = 0;
+
+        for (Map.Entry<String, Integer> count : counts.entrySet()) {
+            terms[n] = count.getKey();
+            freqs[n] = count.getValue();
+            length += freqs[n];
+            ++n;
+        }
+
+        return new CompactTermVector(terms, freqs, length);
+    }
+
+    /**
+     * @return the number of distinct terms
+     */
+    public int size() {
+        return terms.length;
+    }
+
+    public String getTerm(int i) {
+        return terms[i];
+    }
+
+    public int getFreq(int i) {
+        return freqs[i];
+    }
+
+    public long getLength() {
+        return length;
+    }
+}
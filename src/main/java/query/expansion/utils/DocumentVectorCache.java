@@ -0,0 +1,229 @@
+package query.expansion.utils;
+
+import org.apache.lucene.index.IndexReader;
+
+import java.io.IOException;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+
+/**
+ * A bounded cache of decoded term vectors, shared between queries: popular paragraphs end up in the feedback set of
+ * many queries (e.g. of sibling sections of the same page), and are then only decoded once. Entries are keyed by the
+ * reader (its cache key, hence a reopened reader gets new entries), the field and the doc id; they are evicted in least
+ * recently used order once their estimated footprint exceeds the bound, and purged as soon as their reader is closed.
+ *
+ * All methods are synchronized, such that the cache can be shared by concurrent queries; the term vectors themselves
+ * are decoded outside of the lock.
+ */
+public class DocumentVectorCache {
+    /**
+     * Rough size of a cache entry, without its term vector (key, map entry and the term vector object itself)
+     */
+    private static final long ENTRY_BYTES = 128;
+    /**
+     * Rough size of a term of a term vector, without its characters (String object, char array header, array slots)
+     */
+    private static final long TERM_BYTES = 64;
+
+    /**
+     * The maximal estimated footprint of the entries, in bytes
+     */
+    private final long maxBytes;
+    /**
+     * The entries, in access order
+     */
+    private final LinkedHashMap<Key, Entry> entries;
+    /**
+     * The readers on whose closing the entries are purged
+     */
+    private final Set<IndexReader.CacheKey> listenedReaders = new HashSet<>();
+
+    /* Counters */
+    private long hits;
+    private long misses;
+    private long evictions;
+    private long footprintBytes;
+
+    public DocumentVectorCache(long maxBytes) {
+        this.maxBytes = maxBytes;
+        this.entries = new LinkedHashMap<>(16, 0.75f, true);
+    }
+
+    /**
+     * Get the term vector of a document, decoding it on a miss
+     *
+     * @param reader the reader holding the document
+     * @param docId the doc id of the document
+     * @param field the field whose term vector is read
+     * @return the term vector, or null if term vectors were not indexed for the field
+     * @throws IOException if the term vector cannot be read
+     */
+    public CompactTermVector get(IndexReader reader, int docId, String field) throws IOException {
+        IndexReader.CacheHelper cacheHelper = reader.getReaderCacheHelper();
+
+        /* Readers which cannot be cached are not cached either */
+        if (cacheHelper == null)
+            return CompactTermVector.read(reader, docId, field);
+
+        Key key = new Key(cacheHelper.getKey(), field, docId);
+
+        synchronized (this) {
+            Entry entry = entries.get(key);
+
+            if (entry != null) {
+                ++hits;
+                return entry.termVector;
+            }
+
+            ++misses;
+
+            /* The entries of a closed reader never hit again; do not let them hold the budget until they are evicted */
+            if (listenedReaders.add(cacheHelper.getKey()))
+                cacheHelper.addClosedListener(this::purge);
+        }
+
+        CompactTermVector termVector = CompactTermVector.read(reader, docId, field);
+
+        if (termVector != null)
+            put(key, termVector);
+
+        return termVector;
+    }
+
+    /**
+     * Drop all the entries
+     */
+    public synchronized void clear() {
+        entries.clear();
+        footprintBytes = 0;
+    }
+
+    /**
+     * Drop the entries of a reader
+     *
+     * @param readerKey the cache key of the (closed) reader
+     */
+    private synchronized void purge(IndexReader.CacheKey readerKey) {
+        listenedReaders.remove(readerKey);
+
+        Iterator<Map.Entry<Key, Entry>> iterator = entries.entrySet().iterator();
+
+        while (iterator.hasNext()) {
+            Map.Entry<Key, Entry> entry = iterator.next();
+
+            if (entry.getKey().readerKey == readerKey) {
+                footprintBytes -= entry.getValue().bytes;
+                iterator.remove();
+            }
+        }
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    public synchronized double getHitRate() {
+        return hits + misses == 0 ? 0.0 : (double) hits / (double) (hits + misses);
+    }
+
+    public synchronized long getEvictions() {
+        return evictions;
+    }
+
+    /**
+     * @return the estimated memory held by the entries, in bytes
+     */
+    public synchronized long getFootprintBytes() {
+        return footprintBytes;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "DocumentVectorCache{" +
+                "entries=" + entries.size() +
+                ", hitRate=" + getHitRate() +
+                ", hits=" + hits +
+                ", misses=" + misses +
+                ", evictions=" + evictions +
+                ", footprintBytes=" + footprintBytes +
+                ", maxBytes=" + maxBytes +
+                '}';
+    }
+
+    private synchronized void put(Key key, CompactTermVector termVector) {
+        /* Another thread may have decoded the same document meanwhile */
+        Entry previous = entries.remove(key);
+
+        if (previous != null)
+            footprintBytes -= previous.bytes;
+
+        Entry entry = new Entry(termVector, estimateBytes(termVector));
+        entries.put(key, entry);
+        footprintBytes += entry.bytes;
+
+        while (footprintBytes > maxBytes && !entries.isEmpty()) {
+            Iterator<Map.Entry<Key, Entry>> iterator = entries.entrySet().iterator();
+            footprintBytes -= iterator.next().getValue().bytes;
+            iterator.remove();
+            ++evictions;
+        }
+    }
+
+    private static long estimateBytes(CompactTermVector termVector) {
+        long bytes = ENTRY_BYTES;
+
+        for (int i = 0; i < termVector.size(); ++i)
+            bytes += TERM_BYTES + 2L * termVector.getTerm(i).length() + Integer.BYTES;
+
+        return bytes;
+    }
+
+    private static class Key {
+        private final IndexReader.CacheKey readerKey;
+        private final String field;
+        private final int docId;
+
+        private Key(IndexReader.CacheKey readerKey, String field, int docId) {
+            this.readerKey = readerKey;
+            this.field = field;
+            this.docId = docId;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (o == null || getClass() != o.getClass()) return false;
+            Key key = (Key) o;
+            return docId == key.docId &&
+                    readerKey == key.readerKey &&
+                    Objects.equals(field, key.field);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * (31 * System.identityHashCode(readerKey) + field.hashCode()) + docId;
+        }
+    }
+
+    private static class Entry {
+        private final CompactTermVector termVector;
+        private final long bytes;
+
+        private Entry(CompactTermVector termVector, long bytes) {
+            this.termVector = termVector;
+            this.bytes = bytes;
+        }
+    }
+}
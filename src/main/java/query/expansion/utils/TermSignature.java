@@ -0,0 +1,164 @@
+package query.expansion.utils;
+
+import org.apache.lucene.index.BinaryDocValues;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.index.ReaderUtil;
+import org.apache.lucene.util.BytesRef;
+import query.expansion.rm.CollectionStatisticsTable;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.PriorityQueue;
+
+/**
+ * The signature of a document: its top terms by TF-IDF, as (term id, weight) pairs, in decreasing order of weight. The
+ * term ids are those of the CollectionStatisticsTable the signature was computed against, and only hold for the build of
+ * the table whose build generation the signature carries.
+ *
+ * Signatures are stored in a binary doc values field, as the build generation of the table (8 bytes), followed by 8 bytes
+ * per pair (the term id and the bits of the weight); the number of pairs is implied by the length of the value. An empty
+ * value stands for a document without a signature.
+ */
+public class TermSignature {
+    private static final int PAIR_BYTES = Integer.BYTES + Float.BYTES;
+
+    /**
+     * The build generation of the table the term ids come from (see CollectionStatisticsTable.getBuildGeneration)
+     */
+    private final long tableGeneration;
+    /**
+     * The ids of the terms, in decreasing order of weight
+     */
+    private final int[] termIds;
+    /**
+     * The TF-IDF weight of each term within the document
+     */
+    private final float[] weights;
+
+    public TermSignature(long tableGeneration, int[] termIds, float[] weights) {
+        this.tableGeneration = tableGeneration;
+        this.termIds = termIds;
+        this.weights = weights;
+    }
+
+    /**
+     * Compute the signature of a document
+     *
+     * @param termVector the term vector of the document
+     * @param table the statistics of the collection, which provide the term ids and the IDF
+     * @param size the maximal number of terms of the signature
+     * @return the signature
+     */
+    public static TermSignature compute(CompactTermVector termVector, CollectionStatisticsTable table, int size) {
+        int[] ids = new int[termVector.size()];
+        float[] tfIdf = new float[termVector.size()];
+
+        /* Keep the top terms in a min-heap, by weight */
+        PriorityQueue<Integer> top = new PriorityQueue<>(size + 1, (Integer a, Integer b) -> Float.compare(tfIdf[a], tfIdf[b]));
+
+        for (int i = 0; i < termVector.size(); ++i) {
+            ids[i] = table.termId(termVector.getTerm(i));
+
+            if (ids[i] < 0)
+                continue;
+
+            tfIdf[i] = (float) (termVector.getFreq(i) * table.getIDF(ids[i]));
+
+            /* Terms which occur in almost every document carry no information (and a non-positive IDF) */
+            if (tfIdf[i] <= 0)
+                continue;
+
+            top.add(i);
+
+            if (top.size() > size)
+                top.poll();
+        }
+
+        int[] termIds = new int[top.size()];
+        float[] weights = new float[top.size()];
+
+        for (int i = termIds.length - 1; i >= 0; --i) {
+            int j = top.poll();
+            termIds[i] = ids[j];
+            weights[i] = tfIdf[j];
+        }
+
+        return new TermSignature(table.getBuildGeneration(), termIds, weights);
+    }
+
+    /**
+     * Read the signature of a document
+     *
+     * @param reader the reader holding the document
+     * @param docId the doc id of the document
+     * @param field the doc values field holding the signatures
+     * @return the signature, or null if the document has none
+     * @throws IOException if the doc values cannot be read
+     */
+    public static TermSignature read(IndexReader reader, int docId, String field) throws IOException {
+        LeafReaderContext leaf = reader.leaves().get(ReaderUtil.subIndex(docId, reader.leaves()));
+        BinaryDocValues docValues = leaf.reader().getBinaryDocValues(field);
+
+        if (docValues == null || !docValues.advanceExact(docId - leaf.docBase))
+            return null;
+
+        BytesRef value = docValues.binaryValue();
+
+        /* Documents indexed without a signature hold an empty value */
+        if (value.length == 0)
+            return null;
+
+        TermSignature signature = decode(value);
+
+        return signature.size() == 0 ? null : signature;
+    }
+
+    public BytesRef encode() {
+        ByteBuffer buffer = ByteBuffer.allocate(Long.BYTES + PAIR_BYTES * termIds.length);
+        buffer.putLong(tableGeneration);
+
+        for (int i = 0; i < termIds.length; ++i)
+            buffer.putInt(termIds[i]).putFloat(weights[i]);
+
+        return new BytesRef(buffer.array());
+    }
+
+    public static TermSignature decode(BytesRef bytes) {
+        ByteBuffer buffer = ByteBuffer.wrap(bytes.bytes, bytes.offset, bytes.length);
+        long tableGeneration = buffer.getLong();
+        int[] termIds = new int[(bytes.length - Long.BYTES) / PAIR_BYTES];
+        float[] weights = new float[termIds.length];
+
+        for (int i = 0; i < termIds.length; ++i) {
+            termIds[i] = buffer.getInt();
+            weights[i] = buffer.getFloat();
+        }
+
+        return new TermSignature(tableGeneration, termIds, weights);
+    }
+
+    public long getTableGeneration() {
+        return tableGeneration;
+    }
+
+    public int size() {
+        return termIds.length;
+    }
+
+    public int getTermId(int i) {
+        return termIds[i];
+    }
+
+    public float getWeight(int i) {
+        return weights[i];
+    }
+
+    @Override
+    public String toString() {
+        return "TermSignature{" +
+                "tableGeneration=" + tableGeneration +
+                ", size=" + termIds.length +
+                '}';
+    }
+}
@@ -0,0 +1,174 @@
+package query.expansion.utils;
+
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.index.Terms;
+import org.apache.lucene.index.TermsEnum;
+import org.apache.lucene.util.BytesRef;
+
+import java.io.IOException;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Resolves the collection statistics (df and cf) of a batch of terms of a field at once. The union of the terms is
+ * sorted, and looked up in one forward pass of seekExact per segment, instead of one IndexReader.docFreq and one
+ * IndexReader.totalTermFreq (each a seek in every segment) per term and per occurrence.
+ *
+ * The reader level totals of the field are computed once per reader; see forReader.
+ */
+public class TermStatisticsResolver {
+    /**
+     * The resolvers, by reader and field; a reader's resolvers are dropped once it is closed
+     */
+    private static final Map<IndexReader.CacheKey, Map<String, TermStatisticsResolver>> RESOLVERS = new ConcurrentHashMap<>();
+
+    private final IndexReader reader;
+    private final String field;
+    /**
+     * The number of documents of the reader (including the deleted ones, as for the idf of the ClassicSimilarity)
+     */
+    private final int docCount;
+    /**
+     * The total number of term occurrences of the field, i.e. the size of the collection
+     */
+    private final long sumTotalTermFreq;
+
+    public TermStatisticsResolver(IndexReader reader, String field) throws IOException {
+        this.reader = reader;
+        this.field = field;
+        this.docCount = reader.maxDoc();
+        this.sumTotalTermFreq = reader.getSumTotalTermFreq(field);
+    }
+
+    /**
+     * Get the resolver of a reader and a field, creating it on the first call
+     *
+     * @param reader the reader
+     * @param field the field
+     * @return the resolver, shared between the callers
+     * @throws IOException if the totals of the field cannot be read
+     */
+    public static TermStatisticsResolver forReader(IndexReader reader, String field) throws IOException {
+        IndexReader.CacheHelper cacheHelper = reader.getReaderCacheHelper();
+
+        /* Readers which cannot be cached get a fresh resolver */
+        if (cacheHelper == null)
+            return new TermStatisticsResolver(reader, field);
+
+        Map<String, TermStatisticsResolver> readerResolvers = RESOLVERS.computeIfAbsent(cacheHelper.getKey(), (IndexReader.CacheKey cacheKey) -> {
+            cacheHelper.addClosedListener(RESOLVERS::remove);
+            return new ConcurrentHashMap<>();
+        });
+
+        TermStatisticsResolver resolver = readerResolvers.get(field);
+
+        if (resolver == null) {
+            resolver = new TermStatisticsResolver(reader, field);
+            readerResolvers.put(field, resolver);
+        }
+
+        return resolver;
+    }
+
+    /**
+     * Resolve the statistics of a batch of terms
+     *
+     * @param terms the terms; duplicates are looked up once
+     * @return the statistics of each (distinct) term; the terms which do not occur in the field have a df and cf of 0
+     * @throws IOException if the terms dictionary cannot be read
+     */
+    public Statistics resolve(Collection<String> terms) throws IOException {
+        /* Sort the union of the terms in the index order, such that each segment is walked forward only */
+        BytesRef[] sortedTerms = terms
+                .stream()
+                .distinct()
+                .map(BytesRef::new)
+                .sorted()
+                .toArray(BytesRef[]::new);
+
+        int[] docFreqs = new int[sortedTerms.length];
+        long[] totalTermFreqs = new long[sortedTerms.length];
+
+        for (LeafReaderContext leaf : reader.leaves()) {
+            Terms leafTerms = leaf.reader().terms(field);
+
+            if (leafTerms == null)
+                continue;
+
+            TermsEnum iterator = leafTerms.iterator();
+
+            for (int i = 0; i < sortedTerms.length; ++i)
+                if (iterator.seekExact(sortedTerms[i])) {
+                    docFreqs[i] += iterator.docFreq();
+                    totalTermFreqs[i] += iterator.totalTermFreq();
+                }
+        }
+
+        Map<String, Integer> index = new HashMap<>(2 * sortedTerms.length);
+
+        for (int i = 0; i < sortedTerms.length; ++i)
+            index.put(sortedTerms[i].utf8ToString(), i);
+
+        return new Statistics(index, docFreqs, totalTermFreqs);
+    }
+
+    public int getDocCount() {
+        return docCount;
+    }
+
+    public long getSumTotalTermFreq() {
+        return sumTotalTermFreq;
+    }
+
+    public String getField() {
+        return field;
+    }
+
+    /**
+     * The statistics of a resolved batch of terms
+     */
+    public static class Statistics {
+        private final Map<String, Integer> index;
+        private final int[] docFreqs;
+        private final long[] totalTermFreqs;
+
+        private Statistics(Map<String, Integer> index, int[] docFreqs, long[] totalTermFreqs) {
+            this.index = index;
+            this.docFreqs = docFreqs;
+            this.totalTermFreqs = totalTermFreqs;
+        }
+
+        /**
+         * @return the df of the term; 0 if it was not resolved, or does not occur
+         */
+        public int docFreq(String term) {
+            Integer i = index.get(term);
+            return i == null ? 0 : docFreqs[i];
+        }
+
+        /**
+         * @return the cf of the term; 0 if it was not resolved, or does not occur
+         */
+        public long totalTermFreq(String term) {
+            Integer i = index.get(term);
+            return i == null ? 0 : totalTermFreqs[i];
+        }
+
+        /**
+         * @return the number of distinct resolved terms
+         */
+        public int size() {
+            return docFreqs.length;
+        }
+
+        @Override
+        public String toString() {
+            return "Statistics{" +
+                    "terms=" + docFreqs.length +
+                    '}';
+        }
+    }
+}
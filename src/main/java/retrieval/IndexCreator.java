@@ -5,23 +5,47 @@ import edu.unh.cs.treccar.Data;
 import edu.unh.cs.treccar.read_data.DeserializeData;
 import org.apache.lucene.analysis.Analyzer;
 import org.apache.lucene.analysis.standard.StandardAnalyzer;
+import org.apache.lucene.document.BinaryDocValuesField;
 import org.apache.lucene.document.Document;
 import org.apache.lucene.document.Field;
 import org.apache.lucene.document.FieldType;
+import org.apache.lucene.document.StringField;
 import org.apache.lucene.document.TextField;
+import org.apache.lucene.index.DirectoryReader;
 import org.apache.lucene.index.IndexWriter;
 import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.index.LeafReader;
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.index.Term;
 import org.apache.lucene.store.FSDirectory;
+import org.apache.lucene.util.Bits;
+import org.apache.lucene.util.BytesRef;
+import query.expansion.rm.CollectionStatisticsTable;
+import query.expansion.utils.CompactTermVector;
+import query.expansion.utils.TermSignature;
 
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
 
 /**
  * @author Dan Graur 4/5/2018
  */
 public class IndexCreator {
+    /**
+     * The binary doc values field holding the term signatures of the paragraphs (see TermSignature)
+     */
+    public static final String SIGNATURE_FIELD = "signature";
+    /**
+     * An untokenized copy of the paragraph id, by which the signatures are updated
+     */
+    private static final String KEY_FIELD = "key";
+
     /**
      * The file indexer
      */
@@ -42,34 +66,141 @@ public class IndexCreator {
      */
     private String pathToParagraphFile;
 
+    /**
+     * The number of shards the paragraphs are split into; 1 for a single index
+     */
+    private int shardNumber = 1;
+
+    /**
+     * The number of terms of the signature of each paragraph; 0 for no signatures
+     */
+    private int signatureSize = 0;
+
+    /**
+     * Path to the collection statistics table the signatures are computed against
+     */
+    private String pathToStatisticsTable;
+
     public IndexCreator(String pathToParagraphFile, String pathToIndex, Analyzer analyzer) {
         this.analyzer = analyzer;
         this.pathToParagraphFile = pathToParagraphFile;
         this.pathToIndex = pathToIndex;
+        this.pathToStatisticsTable = defaultStatisticsTablePath(pathToIndex);
     }
 
     public IndexCreator(String pathToParagraphFile,  Analyzer analyzer) {
         this.analyzer = analyzer;
         this.pathToParagraphFile = pathToParagraphFile;
         this.pathToIndex = "./index";
+        this.pathToStatisticsTable = defaultStatisticsTablePath(pathToIndex);
     }
 
     public IndexCreator(String pathToParagraphFile, String pathToIndex) {
         this.analyzer = new StandardAnalyzer();
         this.pathToParagraphFile = pathToParagraphFile;
         this.pathToIndex = pathToIndex;
+        this.pathToStatisticsTable = defaultStatisticsTablePath(pathToIndex);
     }
 
     public IndexCreator(String pathToParagraphFile) {
         this.analyzer = new StandardAnalyzer();
         this.pathToParagraphFile = pathToParagraphFile;
         this.pathToIndex = "./index";
+        this.pathToStatisticsTable = defaultStatisticsTablePath(pathToIndex);
+    }
+
+    public int getShardNumber() {
+        return shardNumber;
+    }
+
+    /**
+     * Split the index into shards, which are written to pathToIndex/shard-i (see shardPaths). The paragraphs are
+     * assigned by the hash of their id, such that re-indexing puts each paragraph in the same shard.
+     *
+     * @param shardNumber the number of shards; 1 for a single index
+     */
+    public void setShardNumber(int shardNumber) {
+        this.shardNumber = shardNumber;
+    }
+
+    /**
+     * The paths to the shards of a sharded index, as written by createIndex; to be passed to QuerySolver.setShardPaths
+     *
+     * @param pathToIndex the path to the index directory
+     * @param shardNumber the number of shards
+     * @return the paths to the shard directories
+     */
+    public static List<String> shardPaths(String pathToIndex, int shardNumber) {
+        List<String> paths = new ArrayList<>();
+
+        for (int i = 0; i < shardNumber; ++i)
+            paths.add(FileSystems.getDefault().getPath(pathToIndex, "shard-" + i).toString());
+
+        return paths;
+    }
+
+    public int getSignatureSize() {
+        return signatureSize;
+    }
+
+    /**
+     * Store the signature of each paragraph, i.e. its top terms by TF-IDF, in the SIGNATURE_FIELD doc values. The
+     * signatures are computed in a pass after the paragraphs are indexed, against the final collection statistics,
+     * which are written to the statistics table (see setPathToStatisticsTable). Not supported for sharded indexes.
+     *
+     * The signatures hold term ids of that build of the table, and are not recomputed when the index changes later on:
+     * documents added afterwards keep an empty placeholder, and a rebuilt table shifts the ids. SignatureExpander
+     * detects both (the table is no longer current, or the build generations differ), and refuses to run.
+     *
+     * @param signatureSize the number of terms of a signature; 0 for no signatures
+     */
+    public void setSignatureSize(int signatureSize) {
+        this.signatureSize = signatureSize;
+    }
+
+    public String getPathToStatisticsTable() {
+        return pathToStatisticsTable;
+    }
+
+    public void setPathToStatisticsTable(String pathToStatisticsTable) {
+        this.pathToStatisticsTable = pathToStatisticsTable;
+    }
+
+    /**
+     * The default path to the collection statistics table of an index: a sibling of the index directory
+     *
+     * @param pathToIndex the path to the index directory
+     * @return the path to the table directory
+     */
+    public static String defaultStatisticsTablePath(String pathToIndex) {
+        return pathToIndex + "-stats";
     }
 
     public IndexWriter getIndexer() {
         return indexer;
     }
 
+    /**
+     * Open the indexer ahead of the indexing, such that it can be shared with a near-real-time QuerySolver while the
+     * paragraphs are being added. An indexer opened this way is left open by createIndex; closing it (after the
+     * solver has been terminated) is then up to the caller.
+     *
+     * @return the indexer
+     * @throws IOException Thrown when one cannot open the index directory
+     */
+    public IndexWriter openIndexer() throws IOException {
+        if (indexer == null) {
+            /* Open here to insure that if indeed the directory cannot be created, the program will not move any further and will throw an exception */
+            FSDirectory dir = FSDirectory.open(FileSystems.getDefault().getPath(pathToIndex));
+
+            /* Create the indexer */
+            IndexWriterConfig config = new IndexWriterConfig(analyzer);
+            indexer = new IndexWriter(dir, config);
+        }
+
+        return indexer;
+    }
+
     /**
      * Create an index directory for the paragraphs specified in the source file
      *
@@ -77,33 +208,32 @@ public class IndexCreator {
      * @throws CborException This exception is never really thrown
      */
     public void createIndex() throws IOException, CborException {
-        /* Open here to insure that if indeed the directory cannot be created, the program will not move any further and will throw an exception */
-        FSDirectory dir = FSDirectory.open(FileSystems.getDefault().getPath(pathToIndex));
+        if (shardNumber > 1) {
+            if (signatureSize > 0)
+                throw new IllegalStateException("Signatures require collection-wide term ids, and are not supported for sharded indexes");
+
+            createShardedIndex();
+            return;
+        }
 
-        /* Create the indexer */
-        IndexWriterConfig config = new IndexWriterConfig(analyzer);
-        indexer = new IndexWriter(dir, config);
+        /* An indexer opened beforehand is shared (see openIndexer), hence it is not ours to close */
+        boolean sharedIndexer = indexer != null;
+        openIndexer();
 
         /* Open the paragraph file here, as to ensure that the execution does not proceed if this file cannot be opened */
         final FileInputStream fileInputStream = new FileInputStream(new File(pathToParagraphFile));
 
         /* Read all the paragraphs, and index them */
-        for(Data.Paragraph p: DeserializeData.iterableParagraphs(fileInputStream)) {
-            Document doc = new Document();
-
-            /* Index the paragraph field and the id of the paragraph (we'll need the latter later for checking against the ground truth) */
-            /* Create a custom field which will store the term vectors (should be useful for the RMs) */
-            FieldType termVectorCustomFType = new FieldType(TextField.TYPE_STORED);
-            termVectorCustomFType.setStoreTermVectors(true);
-            termVectorCustomFType.setStored(true);
-            Field paraField = new Field("paragraph", p.getTextOnly(), termVectorCustomFType);
-
-            /* Add the field(s): paragraph, and id */
-            doc.add(paraField);
-//            doc.add(new TextField("paragraph", p.getTextOnly(), Field.Store.YES));
-            doc.add(new TextField("id", p.getParaId(), Field.Store.YES));
-
-            indexer.addDocument(doc);
+        for(Data.Paragraph p: DeserializeData.iterableParagraphs(fileInputStream))
+            indexer.addDocument(createDocument(p));
+
+        if (signatureSize > 0)
+            createSignatures();
+
+        if (sharedIndexer) {
+            /* Make the whole collection durable, and visible to the next refresh */
+            indexer.commit();
+            return;
         }
 
         try {
@@ -114,4 +244,111 @@ public class IndexCreator {
 
     }
 
+    /**
+     * Compute the signature of every paragraph against the statistics of the whole collection, and store it in place of
+     * the empty placeholder value the paragraph was indexed with. The statistics table is built from the commit of the
+     * paragraphs, and re-tagged with the commit of the signatures (which does not change the terms).
+     *
+     * @throws IOException Thrown when the index cannot be read or updated, or the table cannot be written
+     */
+    private void createSignatures() throws IOException {
+        long start = System.nanoTime();
+        Path tablePath = FileSystems.getDefault().getPath(pathToStatisticsTable);
+        int signatures = 0;
+
+        indexer.commit();
+
+        try (DirectoryReader reader = DirectoryReader.open(indexer.getDirectory())) {
+            CollectionStatisticsTable.write(reader, "paragraph", tablePath);
+            CollectionStatisticsTable table = CollectionStatisticsTable.open(tablePath);
+
+            for (LeafReaderContext leaf : reader.leaves()) {
+                LeafReader leafReader = leaf.reader();
+                Bits liveDocs = leafReader.getLiveDocs();
+
+                for (int docId = 0; docId < leafReader.maxDoc(); ++docId) {
+                    if (liveDocs != null && !liveDocs.get(docId))
+                        continue;
+
+                    CompactTermVector termVector = CompactTermVector.read(leafReader, docId, "paragraph");
+
+                    if (termVector == null)
+                        continue;
+
+                    String paraId = leafReader.document(docId, Collections.singleton("id")).get("id");
+                    BytesRef signature = TermSignature.compute(termVector, table, signatureSize).encode();
+                    indexer.updateBinaryDocValue(new Term(KEY_FIELD, paraId), SIGNATURE_FIELD, signature);
+                    ++signatures;
+                }
+            }
+        }
+
+        indexer.commit();
+
+        try (DirectoryReader reader = DirectoryReader.open(indexer.getDirectory())) {
+            CollectionStatisticsTable.retag(tablePath, reader);
+        }
+
+        System.out.println("> " + signatures + " signatures of " + signatureSize + " terms computed in " + ((System.nanoTime() - start) / 1_000_000.0) + " ms");
+    }
+
+    /**
+     * Create the shards of the index, each with its own writer; the shards are independent indexes
+     *
+     * @throws IOException Thrown when one cannot open a file / directory
+     * @throws CborException This exception is never really thrown
+     */
+    private void createShardedIndex() throws IOException, CborException {
+        List<String> paths = shardPaths(pathToIndex, shardNumber);
+        IndexWriter[] shardIndexers = new IndexWriter[shardNumber];
+
+        try {
+            for (int i = 0; i < shardNumber; ++i)
+                shardIndexers[i] = new IndexWriter(FSDirectory.open(FileSystems.getDefault().getPath(paths.get(i))), new IndexWriterConfig(analyzer));
+
+            final FileInputStream fileInputStream = new FileInputStream(new File(pathToParagraphFile));
+
+            for(Data.Paragraph p: DeserializeData.iterableParagraphs(fileInputStream))
+                shardIndexers[Math.floorMod(p.getParaId().hashCode(), shardNumber)].addDocument(createDocument(p));
+        } finally {
+            for (IndexWriter shardIndexer : shardIndexers)
+                if (shardIndexer != null)
+                    try {
+                        shardIndexer.close();
+                    } catch (IOException e) {
+                        e.printStackTrace();
+                    }
+        }
+    }
+
+    /**
+     * Create the document of a paragraph
+     *
+     * @param p the paragraph
+     * @return the document
+     */
+    private Document createDocument(Data.Paragraph p) {
+        Document doc = new Document();
+
+        /* Index the paragraph field and the id of the paragraph (we'll need the latter later for checking against the ground truth) */
+        /* Create a custom field which will store the term vectors (should be useful for the RMs) */
+        FieldType termVectorCustomFType = new FieldType(TextField.TYPE_STORED);
+        termVectorCustomFType.setStoreTermVectors(true);
+        termVectorCustomFType.setStored(true);
+        Field paraField = new Field("paragraph", p.getTextOnly(), termVectorCustomFType);
+
+        /* Add the field(s): paragraph, and id */
+        doc.add(paraField);
+//        doc.add(new TextField("paragraph", p.getTextOnly(), Field.Store.YES));
+        doc.add(new TextField("id", p.getParaId(), Field.Store.YES));
+
+        /* Doc values can only be updated in place if the field exists, hence the placeholder of the signature */
+        if (signatureSize > 0) {
+            doc.add(new StringField(KEY_FIELD, p.getParaId(), Field.Store.NO));
+            doc.add(new BinaryDocValuesField(SIGNATURE_FIELD, new BytesRef()));
+        }
+
+        return doc;
+    }
+
 }
@@ -0,0 +1,397 @@
+package server;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import eval.LatencyStats;
+import eval.RunFileWriter;
+import org.apache.lucene.analysis.Analyzer;
+import org.apache.lucene.search.similarities.BM25Similarity;
+import org.apache.lucene.search.similarities.ClassicSimilarity;
+import org.apache.lucene.search.similarities.LMDirichletSimilarity;
+import org.apache.lucene.search.similarities.LMJelinekMercerSimilarity;
+import org.apache.lucene.search.similarities.Similarity;
+import query.BinaryQueryBuilder;
+import query.QueryBuilder;
+import query.QueryExecutors;
+import query.QuerySolver;
+import query.ResultCache;
+import query.SearchHit;
+import query.analyzer.CustomAnalyzer;
+import query.analyzer.MyStopWords;
+import query.expansion.Expander;
+import query.expansion.rm.RelevanceBasedLanguageModel;
+import query.expansion.rocchio.Rocchio;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.io.UnsupportedEncodingException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * A long running query server around a QuerySolver, on the loopback interface. The solver (hence the searcher, the
+ * statistics and the caches) stays hot between requests. Endpoints:
+ *
+ *  GET  /search?q=...    answers a single query; one "rank paraId score" line per hit
+ *  POST /batch           answers the "queryId TAB query" lines of the body; one TREC run line per hit
+ *  GET  /stats           throughput, latency and cache counters (add reset=true to reset the latencies)
+ *
+ * Both /search and /batch accept k (the number of results) and per request parameters for the similarity
+ * (sim=classic|bm25|lmd|lmjm, k1, b, mu, smoothing) and the expander (expander=none|rocchio|rm1|rm3, terms, docs,
+ * alpha, beta, lambda, mixingLambda). If they are absent, the similarity and expander of the solver are used.
+ */
+public class QueryServer {
+    /**
+     * The path to the index
+     */
+    private static final String PATH_TO_INDEX = "./index";
+    /**
+     * The default target search field
+     */
+    private static final String TARGET_FIELD =  "paragraph";
+    /**
+     * The id field
+     */
+    private static final String ID_FIELD =  "id";
+    /**
+     * The default port
+     */
+    private static final int DEFAULT_PORT = 8080;
+
+    /**
+     * The solver, kept hot between requests
+     */
+    private QuerySolver solver;
+    /**
+     * The analyzer used for the per request expanders
+     */
+    private Analyzer analyzer;
+    /**
+     * The query builder used for the per request expanders
+     */
+    private QueryBuilder queryBuilder;
+    /**
+     * The HTTP server
+     */
+    private HttpServer httpServer;
+    /**
+     * The executor on which the requests are handled
+     */
+    private ExecutorService requestExecutor;
+    /**
+     * The executor on which the queries of a batch are answered
+     */
+    private ExecutorService batchExecutor;
+    /**
+     * The kind of threads which answer the queries of a batch
+     */
+    private QueryExecutors.Backend batchBackend = QueryExecutors.Backend.PLATFORM;
+
+    /* Counters */
+    private final long startTime = System.nanoTime();
+    private final AtomicLong requests = new AtomicLong();
+    private final AtomicLong queries = new AtomicLong();
+    private final AtomicLong errors = new AtomicLong();
+    private final LatencyStats latencies = new LatencyStats();
+
+    public QueryServer(QuerySolver solver, Analyzer analyzer, QueryBuilder queryBuilder) {
+        this.solver = solver;
+        this.analyzer = analyzer;
+        this.queryBuilder = queryBuilder;
+    }
+
+    public QueryExecutors.Backend getBatchBackend() {
+        return batchBackend;
+    }
+
+    /**
+     * Set the kind of threads which answer the queries of a batch; must be called before the server is started
+     *
+     * @param batchBackend VIRTUAL for a virtual thread per query (JDK 21+, with a fallback to the fixed pool)
+     */
+    public void setBatchBackend(QueryExecutors.Backend batchBackend) {
+        this.batchBackend = batchBackend;
+    }
+
+    /**
+     * Start serving; the solver must already be initiated
+     *
+     * @param port the port, on the loopback interface
+     * @param threadNumber the number of request threads, and of batch threads (unless these are virtual)
+     * @throws IOException if the port cannot be bound
+     */
+    public void start(int port, int threadNumber) throws IOException {
+        httpServer = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+        httpServer.createContext("/search", (HttpExchange exchange) -> handle(exchange, this::search));
+        httpServer.createContext("/batch", (HttpExchange exchange) -> handle(exchange, this::batch));
+        httpServer.createContext("/stats", (HttpExchange exchange) -> handle(exchange, this::stats));
+        requestExecutor = Executors.newFixedThreadPool(threadNumber);
+        httpServer.setExecutor(requestExecutor);
+
+        batchExecutor = QueryExecutors.newExecutor(batchBackend, threadNumber);
+
+        httpServer.start();
+        System.out.println(
+                "> Query server listening on " + httpServer.getAddress() +
+                " (batch threads: " + QueryExecutors.effectiveBackend(batchBackend) + ")"
+        );
+    }
+
+    /**
+     * Stop serving; the solver is left open
+     */
+    public void stop() {
+        httpServer.stop(0);
+        requestExecutor.shutdownNow();
+        batchExecutor.shutdownNow();
+    }
+
+    private String search(HttpExchange exchange, Map<String, String> params) throws IOException {
+        String q = params.get("q");
+
+        if (q == null || q.isEmpty())
+            throw new IllegalArgumentException("Missing parameter: q");
+
+        List<SearchHit> hits = timedSearch(q, params);
+        StringBuilder response = new StringBuilder();
+
+        for (int i = 0; i < hits.size(); ++i)
+            response.append(i + 1).append(' ').append(hits.get(i).getParaId()).append(' ').append(hits.get(i).getScore()).append('\n');
+
+        return response.toString();
+    }
+
+    private String batch(HttpExchange exchange, Map<String, String> params) throws IOException {
+        /* Read the "queryId TAB query" lines of the body */
+        SortedMap<String, String> batchQueries = new TreeMap<>();
+        BufferedReader reader = new BufferedReader(new InputStreamReader(exchange.getRequestBody(), StandardCharsets.UTF_8));
+        String line;
+
+        while ((line = reader.readLine()) != null) {
+            String[] tokens = line.split("\t", 2);
+
+            if (tokens.length == 2 && !tokens[1].isEmpty())
+                batchQueries.put(tokens[0], tokens[1]);
+        }
+
+        SortedMap<String, Future<List<SearchHit>>> pending = new TreeMap<>();
+
+        for (Map.Entry<String, String> entry : batchQueries.entrySet())
+            pending.put(entry.getKey(), batchExecutor.submit(() -> timedSearch(entry.getValue(), params)));
+
+        String tag = params.getOrDefault("tag", "query-server");
+        StringBuilder response = new StringBuilder();
+
+        try {
+            for (Map.Entry<String, Future<List<SearchHit>>> entry : pending.entrySet())
+                RunFileWriter.appendRunLines(response, entry.getKey(), entry.getValue().get(), tag);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for the batch results", e);
+        } catch (ExecutionException e) {
+            /* Bad parameters (e.g. an unknown similarity or expander) are the client's error, as for /search */
+            if (e.getCause() instanceof IllegalArgumentException)
+                throw (IllegalArgumentException) e.getCause();
+
+            throw new IOException("Unable to answer a query of the batch", e.getCause());
+        }
+
+        return response.toString();
+    }
+
+    private String stats(HttpExchange exchange, Map<String, String> params) {
+        double uptime = (System.nanoTime() - startTime) / 1_000_000_000.0;
+        ResultCache resultCache = solver.getResultCache();
+
+        String response = "uptime_seconds " + uptime + '\n' +
+                "requests " + requests.get() + '\n' +
+                "queries " + queries.get() + '\n' +
+                "errors " + errors.get() + '\n' +
+                "throughput_qps " + (queries.get() / uptime) + '\n' +
+                "latency " + latencies + '\n' +
+                "expansions " + solver.getExpansionReport() + '\n' +
+                "fallbacks " + solver.getFallbackCounts() + '\n' +
+                "result_cache " + resultCache + '\n';
+
+        if (Boolean.parseBoolean(params.get("reset")))
+            latencies.clear();
+
+        return response;
+    }
+
+    /**
+     * Answer a single query with the similarity and the expander of the request, and record its latency
+     */
+    private List<SearchHit> timedSearch(String q, Map<String, String> params) throws IOException {
+        int k = Integer.parseInt(params.getOrDefault("k", "10"));
+        long start = System.nanoTime();
+
+        /* Resolve the paragraph ids within the timing (and before the searcher is released), as they are part of the answer */
+        try (Stream<SearchHit> stream = solver.searchHits(q, k, parseSimilarity(params), parseExpander(params))) {
+            List<SearchHit> hits = stream
+                    .peek(SearchHit::getParaId)
+                    .collect(Collectors.toList());
+
+            queries.incrementAndGet();
+            latencies.record(System.nanoTime() - start);
+
+            return hits;
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+    }
+
+    /**
+     * Build the similarity of the request
+     *
+     * @return the similarity, or null if the request does not specify one
+     */
+    private Similarity parseSimilarity(Map<String, String> params) {
+        String sim = params.get("sim");
+
+        if (sim == null)
+            return null;
+
+        switch (sim) {
+            case "classic":
+                return new ClassicSimilarity();
+            case "bm25":
+                return new BM25Similarity(
+                        Float.parseFloat(params.getOrDefault("k1", "1.2")),
+                        Float.parseFloat(params.getOrDefault("b", "0.75"))
+                );
+            case "lmd":
+                return new LMDirichletSimilarity(Float.parseFloat(params.getOrDefault("mu", "2000")));
+            case "lmjm":
+                return new LMJelinekMercerSimilarity(Float.parseFloat(params.getOrDefault("smoothing", "0.7")));
+            default:
+                throw new IllegalArgumentException("Unknown similarity: " + sim);
+        }
+    }
+
+    /**
+     * Build the expander of the request
+     *
+     * @return the expander; the one of the solver if the request does not specify one, null for "none"
+     */
+    private Expander parseExpander(Map<String, String> params) {
+        String expander = params.get("expander");
+
+        if (expander == null)
+            return solver.getQueryExpander();
+
+        int termLimit = Integer.parseInt(params.getOrDefault("terms", "10"));
+        int documentLimit = Integer.parseInt(params.getOrDefault("docs", "5"));
+
+        switch (expander) {
+            case "none":
+                return null;
+            case "rocchio":
+                return new Rocchio(
+                        Float.parseFloat(params.getOrDefault("alpha", "1.0")),
+                        Float.parseFloat(params.getOrDefault("beta", "0.75")),
+                        termLimit, documentLimit, TARGET_FIELD, analyzer, queryBuilder
+                );
+            case "rm1":
+            case "rm3":
+                return new RelevanceBasedLanguageModel(
+                        termLimit, documentLimit, TARGET_FIELD, analyzer, queryBuilder,
+                        Float.parseFloat(params.getOrDefault("lambda", "0.7")),
+                        Float.parseFloat(params.getOrDefault("mixingLambda", "0.7")),
+                        expander.equals("rm1") ? RelevanceBasedLanguageModel.RMType.RM1 : RelevanceBasedLanguageModel.RMType.RM3
+                );
+            default:
+                throw new IllegalArgumentException("Unknown expander: " + expander);
+        }
+    }
+
+    /**
+     * Run an endpoint, and send its response (or its error) back
+     */
+    private void handle(HttpExchange exchange, Endpoint endpoint) throws IOException {
+        requests.incrementAndGet();
+
+        int status = 200;
+        String response;
+
+        try {
+            response = endpoint.respond(exchange, parseParameters(exchange.getRequestURI().getRawQuery()));
+        } catch (IllegalArgumentException e) {
+            errors.incrementAndGet();
+            status = 400;
+            response = e.getMessage() + '\n';
+        } catch (IOException | RuntimeException e) {
+            errors.incrementAndGet();
+            status = 500;
+            response = e + "\n";
+        }
+
+        byte[] body = response.getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=utf-8");
+        exchange.sendResponseHeaders(status, body.length);
+
+        try (OutputStream outputStream = exchange.getResponseBody()) {
+            outputStream.write(body);
+        }
+    }
+
+    private static Map<String, String> parseParameters(String rawQuery) throws UnsupportedEncodingException {
+        Map<String, String> params = new HashMap<>();
+
+        if (rawQuery == null)
+            return params;
+
+        for (String pair : rawQuery.split("&")) {
+            int separator = pair.indexOf('=');
+
+            if (separator > 0)
+                params.put(URLDecoder.decode(pair.substring(0, separator), "UTF-8"), URLDecoder.decode(pair.substring(separator + 1), "UTF-8"));
+        }
+
+        return params;
+    }
+
+    @FunctionalInterface
+    private interface Endpoint {
+        String respond(HttpExchange exchange, Map<String, String> params) throws IOException;
+    }
+
+    public static void main(String[] args) throws IOException {
+        int port = args.length > 0 ? Integer.parseInt(args[0]) : DEFAULT_PORT;
+        int threadNumber = args.length > 1 ? Integer.parseInt(args[1]) : Runtime.getRuntime().availableProcessors();
+        QueryExecutors.Backend batchBackend = args.length > 2 ? QueryExecutors.Backend.valueOf(args[2].toUpperCase()) : QueryExecutors.Backend.PLATFORM;
+
+        Analyzer analyzer = new CustomAnalyzer(MyStopWords.stopWords);
+        QueryBuilder queryBuilder = new BinaryQueryBuilder(analyzer, 128);
+
+        QuerySolver querySolver = new QuerySolver(
+                System.in,
+                TARGET_FIELD,
+                PATH_TO_INDEX,
+                queryBuilder,
+                new BM25Similarity(),
+                ID_FIELD,
+                null,
+                false
+        );
+        querySolver.setResultCache(new ResultCache(10_000, 0));
+        querySolver.initiateSolver();
+
+        QueryServer queryServer = new QueryServer(querySolver, analyzer, queryBuilder);
+        queryServer.setBatchBackend(batchBackend);
+        queryServer.start(port, threadNumber);
+    }
+}
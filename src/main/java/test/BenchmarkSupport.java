@@ -0,0 +1,99 @@
+package test;
+
+import eval.Evaluator;
+import eval.ReadQRels;
+import javafx.util.Pair;
+import org.apache.lucene.benchmark.quality.QualityStats;
+import org.apache.lucene.search.similarities.BM25Similarity;
+import org.apache.lucene.search.similarities.Similarity;
+import query.QueryBuilder;
+import query.QuerySolver;
+import query.TRECQuery;
+import query.expansion.Expander;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * The data set and the evaluation loop shared by the benchmarks. These are mains over the TREC CAR data (see QREL_FILE
+ * and OUTLINE_FILE) and an index of it, not unit tests.
+ */
+public final class BenchmarkSupport {
+    /**
+     * This points to the QRel file which will be used towards gathering the ground truths
+     */
+    public static final String QREL_FILE = "./data_14/train.test200.cbor.hierarchical.qrels";
+    /**
+     * This points to the outline file which will be used towards extracting all the possible queries
+     */
+    public static final String OUTLINE_FILE = "./data_14/train.test200.cbor.outlines";
+    /**
+     * The path to the index
+     */
+    public static final String PATH_TO_INDEX = "./index";
+    /**
+     * The default target search field
+     */
+    public static final String TARGET_FIELD =  "paragraph";
+    /**
+     * The id field
+     */
+    public static final String ID_FIELD =  "id";
+
+    private BenchmarkSupport() {
+    }
+
+    /**
+     * Read the ground truths of the QRel and outline files
+     */
+    public static Map<TRECQuery, Set<String>> readGroundTruths() throws IOException {
+        return ReadQRels.readGroundTruths(QREL_FILE, OUTLINE_FILE);
+    }
+
+    /**
+     * A solver over the benchmark index, which is not yet initiated
+     */
+    public static QuerySolver newSolver(QueryBuilder queryBuilder, Similarity similarity, Expander expander) {
+        return new QuerySolver(
+                System.in,
+                TARGET_FIELD,
+                PATH_TO_INDEX,
+                queryBuilder,
+                similarity,
+                ID_FIELD,
+                expander,
+                false
+        );
+    }
+
+    /**
+     * Evaluate the expander under BM25, and print the MAP, R-Prec and total time under the given name
+     */
+    public static Pair<QualityStats, Double> evaluate(String name, Expander expander, QueryBuilder queryBuilder,
+                                                      Map<TRECQuery, Set<String>> groundTruths) throws IOException {
+        return evaluate(name, newSolver(queryBuilder, new BM25Similarity(), expander), groundTruths);
+    }
+
+    /**
+     * Initiate the solver, evaluate it, terminate it, and print the MAP, R-Prec and total time under the given name
+     */
+    public static Pair<QualityStats, Double> evaluate(String name, QuerySolver querySolver, Map<TRECQuery, Set<String>> groundTruths) throws IOException {
+        querySolver.initiateSolver();
+
+        long start = System.nanoTime();
+        Pair<QualityStats, Double> resPair = new Evaluator(querySolver, groundTruths, false).evaluate();
+        long elapsed = System.nanoTime() - start;
+
+        querySolver.terminateSovler();
+
+        System.out.println(
+                "\n" + name +
+                "\nMAP: " + resPair.getKey().getAvp() +
+                "\nR-Prec: " + resPair.getValue() +
+                "\nTotal time: " + (elapsed / 1_000_000.0) + " ms"
+        );
+
+        return resPair;
+    }
+}
@@ -0,0 +1,61 @@
+package test;
+
+import org.apache.lucene.analysis.Analyzer;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.store.FSDirectory;
+import query.BinaryQueryBuilder;
+import query.QueryBuilder;
+import query.TRECQuery;
+import query.analyzer.CustomAnalyzer;
+import query.analyzer.MyStopWords;
+import query.expansion.Expander;
+import query.expansion.rm.CollectionStatistics;
+import query.expansion.rm.RelevanceBasedLanguageModel;
+
+import java.io.IOException;
+import java.nio.file.FileSystems;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import static test.BenchmarkSupport.PATH_TO_INDEX;
+import static test.BenchmarkSupport.TARGET_FIELD;
+
+/**
+ * Compares the smoothing of the RM3 document models: with the statistics of a per-query index of the feedback documents
+ * (the original path), with the statistics of the feedback term vectors read from the main index, and with the
+ * collection statistics of the main index. The MAP, R-Prec and total time of each are reported.
+ */
+public class CollectionSmoothingBenchmark {
+    public static void main(String[] args) throws IOException {
+        Analyzer analyzer = new CustomAnalyzer(MyStopWords.stopWords);
+        QueryBuilder queryBuilder = new BinaryQueryBuilder(analyzer, 128);
+        Map<TRECQuery, Set<String>> groundTruths = BenchmarkSupport.readGroundTruths();
+
+        /* The collection model is built once, and shared by all the queries */
+        long start = System.nanoTime();
+        IndexReader reader = DirectoryReader.open(FSDirectory.open(FileSystems.getDefault().getPath(PATH_TO_INDEX)));
+        CollectionStatistics collectionStatistics = new CollectionStatistics(reader, TARGET_FIELD);
+        collectionStatistics.buildCollectionStat();
+        System.out.println("> Collection model built in " + ((System.nanoTime() - start) / 1_000_000.0) + " ms");
+
+        RelevanceBasedLanguageModel feedbackSmoothed = newRM3(analyzer, queryBuilder);
+        RelevanceBasedLanguageModel collectionSmoothed = newRM3(analyzer, queryBuilder);
+        collectionSmoothed.setCollectionModel(collectionStatistics);
+
+        /* Hiding the FeedbackExpander interface makes the solver go through the Document path, i.e. the per-query index */
+        Expander miniIndex = (String[] query, List<Document> relevantDocuments) -> feedbackSmoothed.expand(query, relevantDocuments);
+
+        BenchmarkSupport.evaluate("Per-query index of the feedback documents", miniIndex, queryBuilder, groundTruths);
+        BenchmarkSupport.evaluate("Feedback term vectors", feedbackSmoothed, queryBuilder, groundTruths);
+        BenchmarkSupport.evaluate("Collection model", collectionSmoothed, queryBuilder, groundTruths);
+
+        reader.close();
+    }
+
+    private static RelevanceBasedLanguageModel newRM3(Analyzer analyzer, QueryBuilder queryBuilder) {
+        return new RelevanceBasedLanguageModel(10, 5, TARGET_FIELD, analyzer, queryBuilder, 0.7f, 0.7f, RelevanceBasedLanguageModel.RMType.RM3);
+    }
+}
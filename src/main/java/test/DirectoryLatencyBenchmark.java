@@ -0,0 +1,62 @@
+package test;
+
+import eval.LatencyStats;
+import org.apache.lucene.analysis.Analyzer;
+import org.apache.lucene.search.similarities.BM25Similarity;
+import query.BinaryQueryBuilder;
+import query.QueryBuilder;
+import query.QuerySolver;
+import query.TRECQuery;
+import query.analyzer.CustomAnalyzer;
+import query.analyzer.MyStopWords;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Compares the p50/p99 query latency of the in-memory index modes against the mmap path, on the outline queries.
+ * Each mode gets a warm-up pass over the same queries, such that only steady state latencies are compared.
+ */
+public class DirectoryLatencyBenchmark {
+    /**
+     * The number of results per query
+     */
+    private static final int RESULT_NUMBER = 100;
+
+    public static void main(String[] args) throws IOException {
+        Analyzer analyzer = new CustomAnalyzer(MyStopWords.stopWords);
+        QueryBuilder queryBuilder = new BinaryQueryBuilder(analyzer, 128);
+
+        /* The same query set is used for all the modes */
+        List<String> queries = new ArrayList<>();
+
+        for (TRECQuery trecQuery : BenchmarkSupport.readGroundTruths().keySet())
+            queries.add(trecQuery.getPlainQuery());
+
+        QuerySolver.DirectoryMode[] modes = {
+                QuerySolver.DirectoryMode.MMAP,
+                QuerySolver.DirectoryMode.OFF_HEAP,
+                QuerySolver.DirectoryMode.RAM
+        };
+
+        for (QuerySolver.DirectoryMode mode : modes) {
+            QuerySolver querySolver = BenchmarkSupport.newSolver(queryBuilder, new BM25Similarity(), null);
+            querySolver.setDirectoryMode(mode, true);
+            querySolver.setWarmUpQueries(queries);
+            querySolver.initiateSolver();
+
+            LatencyStats stats = new LatencyStats();
+
+            for (String q : queries) {
+                long start = System.nanoTime();
+                querySolver.answerQuery(q, RESULT_NUMBER);
+                stats.record(System.nanoTime() - start);
+            }
+
+            querySolver.terminateSovler();
+
+            System.out.println(mode + ": " + stats);
+        }
+    }
+}
@@ -0,0 +1,83 @@
+package test;
+
+import org.apache.lucene.analysis.Analyzer;
+import org.apache.lucene.search.similarities.BM25Similarity;
+import query.BinaryQueryBuilder;
+import query.QueryBuilder;
+import query.QueryExecutors;
+import query.QuerySolver;
+import query.TRECQuery;
+import query.analyzer.CustomAnalyzer;
+import query.analyzer.MyStopWords;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Compares the batch throughput of a virtual thread per query against the fixed pool of platform threads, on the
+ * outline queries. The query set is replicated, such that many more queries than threads are in flight; a first round
+ * warms up the index, and is not measured.
+ *
+ * On JVMs older than 21, the VIRTUAL backend falls back to the fixed pool, and both rows measure the same thing.
+ */
+public class ExecutorThroughputBenchmark {
+    /**
+     * The number of copies of the outline query set in a batch
+     */
+    private static final int REPLICAS = 20;
+    /**
+     * The number of measured rounds per backend
+     */
+    private static final int ROUNDS = 3;
+    /**
+     * The number of results per query
+     */
+    private static final int RESULT_NUMBER = 1000;
+
+    public static void main(String[] args) throws IOException {
+        int threadNumber = args.length > 0 ? Integer.parseInt(args[0]) : Runtime.getRuntime().availableProcessors();
+
+        Analyzer analyzer = new CustomAnalyzer(MyStopWords.stopWords);
+        QueryBuilder queryBuilder = new BinaryQueryBuilder(analyzer, 128);
+
+        /* Replicate the queries under distinct ids, as the batch results are keyed by query id */
+        List<TRECQuery> outlineQueries = new ArrayList<>(BenchmarkSupport.readGroundTruths().keySet());
+        List<TRECQuery> queries = new ArrayList<>();
+
+        for (int i = 0; i < REPLICAS; ++i)
+            for (TRECQuery trecQuery : outlineQueries)
+                queries.add(new TRECQuery(trecQuery.getQueryId() + "#" + i, trecQuery.getPlainQuery()));
+
+        QuerySolver querySolver = BenchmarkSupport.newSolver(queryBuilder, new BM25Similarity(), null);
+        querySolver.initiateSolver();
+
+        System.out.println(
+                "> " + queries.size() + " queries per round, " + threadNumber + " platform threads" +
+                "; virtual threads available: " + QueryExecutors.virtualThreadsAvailable()
+        );
+
+        /* Warm-up round */
+        querySolver.answerQueries(queries, RESULT_NUMBER, QueryExecutors.Backend.PLATFORM, threadNumber);
+
+        for (QueryExecutors.Backend backend : QueryExecutors.Backend.values()) {
+            long elapsed = 0;
+
+            for (int round = 0; round < ROUNDS; ++round) {
+                long start = System.nanoTime();
+                querySolver.answerQueries(queries, RESULT_NUMBER, backend, threadNumber);
+                elapsed += System.nanoTime() - start;
+            }
+
+            double seconds = elapsed / 1e9;
+
+            System.out.println(
+                    "\n" + backend + " (runs on " + QueryExecutors.effectiveBackend(backend) + ")" +
+                    "\nTotal time: " + (elapsed / 1_000_000.0) + " ms over " + ROUNDS + " rounds" +
+                    "\nThroughput: " + (ROUNDS * queries.size() / seconds) + " queries/s"
+            );
+        }
+
+        querySolver.terminateSovler();
+    }
+}
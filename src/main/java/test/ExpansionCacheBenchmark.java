@@ -0,0 +1,68 @@
+package test;
+
+import org.apache.lucene.analysis.Analyzer;
+import org.apache.lucene.search.similarities.BM25Similarity;
+import query.BinaryQueryBuilder;
+import query.QueryBuilder;
+import query.QuerySolver;
+import query.TRECQuery;
+import query.analyzer.CustomAnalyzer;
+import query.analyzer.MyStopWords;
+import query.expansion.CachingExpander;
+import query.expansion.rm.RelevanceBasedLanguageModel;
+
+import java.io.IOException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Map;
+import java.util.Set;
+
+import static test.BenchmarkSupport.TARGET_FIELD;
+
+/**
+ * Sweeps the parameters of the BM25 of the second (expanded) pass, with an RM3 expander behind a CachingExpander, and
+ * reports the MAP, the total time and the cache hit rate of each configuration. The first pass keeps the default BM25,
+ * hence its feedback documents are the same in every configuration, and only the first one computes the expansions.
+ *
+ * If a cache file is given as the first argument, the cache is loaded from it (if it exists) and saved to it at the
+ * end, such that a second run of the sweep only expands the queries it has not seen.
+ */
+public class ExpansionCacheBenchmark {
+    private static final float[] K1_VALUES = {0.9f, 1.2f, 1.5f};
+    private static final float[] B_VALUES = {0.4f, 0.75f};
+    private static final long CACHE_BYTES = 64L << 20;
+
+    public static void main(String[] args) throws IOException {
+        Analyzer analyzer = new CustomAnalyzer(MyStopWords.stopWords);
+        QueryBuilder queryBuilder = new BinaryQueryBuilder(analyzer, 128);
+        Map<TRECQuery, Set<String>> groundTruths = BenchmarkSupport.readGroundTruths();
+
+        CachingExpander cachingExpander = new CachingExpander(
+                new RelevanceBasedLanguageModel(10, 5, TARGET_FIELD, analyzer, queryBuilder, 0.7f, 0.7f, RelevanceBasedLanguageModel.RMType.RM3),
+                CACHE_BYTES
+        );
+        Path cacheFile = args.length > 0 ? FileSystems.getDefault().getPath(args[0]) : null;
+
+        if (cacheFile != null && Files.exists(cacheFile))
+            cachingExpander.load(cacheFile);
+
+        for (float k1 : K1_VALUES)
+            for (float b : B_VALUES) {
+                long hits = cachingExpander.getHits();
+                long misses = cachingExpander.getMisses();
+
+                QuerySolver querySolver = BenchmarkSupport.newSolver(queryBuilder, new BM25Similarity(), cachingExpander);
+                querySolver.setSecondPassSimilarity(new BM25Similarity(k1, b));
+
+                BenchmarkSupport.evaluate("Second pass BM25(k1=" + k1 + ", b=" + b + ")", querySolver, groundTruths);
+
+                System.out.println("Cache hits: " + (cachingExpander.getHits() - hits) + ", misses: " + (cachingExpander.getMisses() - misses));
+            }
+
+        System.out.println("\n> " + cachingExpander);
+
+        if (cacheFile != null)
+            cachingExpander.save(cacheFile);
+    }
+}
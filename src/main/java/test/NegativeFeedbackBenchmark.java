@@ -0,0 +1,61 @@
+package test;
+
+import org.apache.lucene.analysis.Analyzer;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.store.FSDirectory;
+import query.BinaryQueryBuilder;
+import query.QueryBuilder;
+import query.TRECQuery;
+import query.analyzer.CustomAnalyzer;
+import query.analyzer.MyStopWords;
+import query.expansion.rocchio.CollectionCentroid;
+import query.expansion.rocchio.Rocchio;
+
+import java.io.IOException;
+import java.nio.file.FileSystems;
+import java.util.Map;
+import java.util.Set;
+
+import static test.BenchmarkSupport.PATH_TO_INDEX;
+import static test.BenchmarkSupport.TARGET_FIELD;
+
+/**
+ * Sweeps the gamma of Rocchio, with the non-relevant centroid approximated from the collection centroid, and reports
+ * the MAP, R-Prec and total time of each value. Plain Rocchio (no centroid) is the first row, as a baseline: a gamma
+ * of 0 goes through the centroid path, and should match it.
+ */
+public class NegativeFeedbackBenchmark {
+    /**
+     * The file of the persisted centroid
+     */
+    private static final String CENTROID_FILE = "./index-centroid";
+
+    private static final int CENTROID_SIZE = 10000;
+    private static final float[] GAMMAS = {0.0f, 0.1f, 0.15f, 0.25f, 0.5f};
+
+    public static void main(String[] args) throws IOException {
+        Analyzer analyzer = new CustomAnalyzer(MyStopWords.stopWords);
+        QueryBuilder queryBuilder = new BinaryQueryBuilder(analyzer, 128);
+        Map<TRECQuery, Set<String>> groundTruths = BenchmarkSupport.readGroundTruths();
+
+        CollectionCentroid centroid;
+
+        try (DirectoryReader reader = DirectoryReader.open(FSDirectory.open(FileSystems.getDefault().getPath(PATH_TO_INDEX)))) {
+            centroid = CollectionCentroid.openOrBuild(reader, TARGET_FIELD, CENTROID_SIZE, FileSystems.getDefault().getPath(CENTROID_FILE));
+        }
+
+        System.out.println("> " + centroid);
+
+        Rocchio plain = new Rocchio(1.0f, 0.75f, 5, 10, TARGET_FIELD, analyzer, queryBuilder);
+        plain.setIdfSource(Rocchio.IdfSource.COLLECTION);
+        BenchmarkSupport.evaluate("No centroid", plain, queryBuilder, groundTruths);
+
+        for (float gamma : GAMMAS) {
+            Rocchio rocchio = new Rocchio(1.0f, 0.75f, 5, 10, TARGET_FIELD, analyzer, queryBuilder);
+            rocchio.setIdfSource(Rocchio.IdfSource.COLLECTION);
+            rocchio.setNegativeFeedback(centroid, gamma);
+
+            BenchmarkSupport.evaluate("Gamma " + gamma, rocchio, queryBuilder, groundTruths);
+        }
+    }
+}
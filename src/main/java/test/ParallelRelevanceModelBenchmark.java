@@ -0,0 +1,164 @@
+package test;
+
+import org.apache.lucene.analysis.Analyzer;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.ScoreDoc;
+import org.apache.lucene.search.similarities.BM25Similarity;
+import org.apache.lucene.store.FSDirectory;
+import query.BinaryQueryBuilder;
+import query.QueryBuilder;
+import query.QuerySolver;
+import query.TRECQuery;
+import query.analyzer.CustomAnalyzer;
+import query.analyzer.MyStopWords;
+import query.expansion.rm.SparseRelevanceModel;
+import query.expansion.utils.CompactTermVector;
+
+import java.io.IOException;
+import java.nio.file.FileSystems;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+
+import static test.BenchmarkSupport.PATH_TO_INDEX;
+import static test.BenchmarkSupport.TARGET_FIELD;
+
+/**
+ * Sweeps the feedback depth against the size of the fork/join pool of the SparseRelevanceModel, and reports the time of
+ * computing P(w|R) per query. The term vectors of the feedback documents are decoded once, upfront, hence only the
+ * relevance model itself is timed.
+ *
+ * Each parallel run is checked against the sequential one: the probabilities must be bitwise identical.
+ */
+public class ParallelRelevanceModelBenchmark {
+    private static final int[] FEEDBACK_DEPTHS = {10, 50, 100, 200, 500};
+    private static final int FEEDBACK_TERMS = 20;
+    private static final float LAMBDA = 0.7f;
+    private static final float MIXING_LAMBDA = 0.7f;
+    /**
+     * The feedback vocabulary size from which the pool is used, and the size of a task
+     */
+    private static final int PARALLEL_THRESHOLD = 1024;
+
+    private static final int WARM_UP_ITERATIONS = 3;
+    private static final int ITERATIONS = 10;
+
+    public static void main(String[] args) throws IOException {
+        Analyzer analyzer = new CustomAnalyzer(MyStopWords.stopWords);
+        QueryBuilder queryBuilder = new BinaryQueryBuilder(analyzer, 128);
+        int maxDepth = FEEDBACK_DEPTHS[FEEDBACK_DEPTHS.length - 1];
+
+        IndexReader reader = DirectoryReader.open(FSDirectory.open(FileSystems.getDefault().getPath(PATH_TO_INDEX)));
+        IndexSearcher searcher = new IndexSearcher(reader);
+        searcher.setSimilarity(new BM25Similarity());
+
+        /* Decode the feedback documents of each query once, at the largest depth */
+        List<String[]> analyzedQueries = new ArrayList<>();
+        List<List<CompactTermVector>> feedbackVectors = new ArrayList<>();
+
+        for (TRECQuery trecQuery : BenchmarkSupport.readGroundTruths().keySet()) {
+            Query query = queryBuilder.buildQuery(TARGET_FIELD, trecQuery.getPlainQuery());
+            String[] analyzedQuery = QuerySolver.unParseQuery(query);
+
+            if (analyzedQuery.length == 0)
+                continue;
+
+            List<CompactTermVector> vectors = new ArrayList<>();
+
+            for (ScoreDoc scoreDoc : searcher.search(query, maxDepth).scoreDocs) {
+                CompactTermVector termVector = CompactTermVector.read(reader, scoreDoc.doc, TARGET_FIELD);
+
+                if (termVector != null)
+                    vectors.add(termVector);
+            }
+
+            analyzedQueries.add(analyzedQuery);
+            feedbackVectors.add(vectors);
+        }
+
+        int cores = Runtime.getRuntime().availableProcessors();
+        List<Integer> poolSizes = new ArrayList<>();
+
+        for (int poolSize = 1; poolSize < cores; poolSize *= 2)
+            poolSizes.add(poolSize);
+
+        poolSizes.add(cores);
+
+        System.out.println("> " + analyzedQueries.size() + " queries; times in us per query");
+        System.out.println("depth\tsequential\t" + poolSizes.toString().replaceAll("[\\[\\] ]", "").replace(',', '\t'));
+
+        for (int depth : FEEDBACK_DEPTHS) {
+            StringBuilder row = new StringBuilder().append(depth);
+            List<float[]> reference = run(analyzedQueries, feedbackVectors, depth, null);
+
+            row.append('\t').append(time(analyzedQueries, feedbackVectors, depth, null));
+
+            for (int poolSize : poolSizes) {
+                ForkJoinPool pool = new ForkJoinPool(poolSize);
+
+                try {
+                    if (!identical(reference, run(analyzedQueries, feedbackVectors, depth, pool)))
+                        System.err.println("> Depth " + depth + ", pool of " + poolSize + ": results differ from the sequential ones");
+
+                    row.append('\t').append(time(analyzedQueries, feedbackVectors, depth, pool));
+                } finally {
+                    pool.shutdown();
+                }
+            }
+
+            System.out.println(row);
+        }
+
+        reader.close();
+    }
+
+    /**
+     * @return the mean time per query, in us
+     */
+    private static long time(List<String[]> analyzedQueries, List<List<CompactTermVector>> feedbackVectors, int depth, ForkJoinPool pool) {
+        for (int i = 0; i < WARM_UP_ITERATIONS; ++i)
+            run(analyzedQueries, feedbackVectors, depth, pool);
+
+        long start = System.nanoTime();
+
+        for (int i = 0; i < ITERATIONS; ++i)
+            run(analyzedQueries, feedbackVectors, depth, pool);
+
+        return (System.nanoTime() - start) / ITERATIONS / Math.max(analyzedQueries.size(), 1) / 1_000;
+    }
+
+    private static List<float[]> run(List<String[]> analyzedQueries, List<List<CompactTermVector>> feedbackVectors, int depth, ForkJoinPool pool) {
+        List<float[]> probabilities = new ArrayList<>();
+
+        for (int i = 0; i < analyzedQueries.size(); ++i) {
+            SparseRelevanceModel model = new SparseRelevanceModel(depth, FEEDBACK_TERMS, LAMBDA, MIXING_LAMBDA);
+            model.setParallelism(pool, PARALLEL_THRESHOLD);
+            model.setFeedbackStats(feedbackVectors.get(i), analyzedQueries.get(i));
+            probabilities.add(model.computeTermProbabilities());
+        }
+
+        return probabilities;
+    }
+
+    /**
+     * @return true if the probabilities are bitwise identical
+     */
+    private static boolean identical(List<float[]> expected, List<float[]> actual) {
+        for (int i = 0; i < expected.size(); ++i) {
+            float[] e = expected.get(i);
+            float[] a = actual.get(i);
+
+            if (e.length != a.length)
+                return false;
+
+            for (int t = 0; t < e.length; ++t)
+                if (Float.floatToRawIntBits(e[t]) != Float.floatToRawIntBits(a[t]))
+                    return false;
+        }
+
+        return true;
+    }
+}
@@ -0,0 +1,147 @@
+package test;
+
+import org.apache.lucene.analysis.Analyzer;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.ScoreDoc;
+import org.apache.lucene.search.similarities.BM25Similarity;
+import org.apache.lucene.store.FSDirectory;
+import query.BinaryQueryBuilder;
+import query.QueryBuilder;
+import query.QuerySolver;
+import query.TRECQuery;
+import query.analyzer.CustomAnalyzer;
+import query.analyzer.MyStopWords;
+import query.expansion.rm.RLM;
+import query.expansion.rm.SparseRelevanceModel;
+import query.expansion.utils.CompactTermVector;
+
+import java.io.IOException;
+import java.nio.file.FileSystems;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import static test.BenchmarkSupport.PATH_TO_INDEX;
+import static test.BenchmarkSupport.TARGET_FIELD;
+
+/**
+ * Compares the map based relevance model (RLM) against the SparseRelevanceModel, on the feedback documents of the
+ * outline queries. Both engines start from the doc ids of the first pass, i.e. the time includes decoding the term
+ * vectors. The feedback documents are gathered once, and each engine gets warm-up iterations before it is timed.
+ *
+ * The overlap of the RM3 terms of the two engines is reported as a sanity check; it should be total, save for ties.
+ */
+public class RelevanceModelBenchmark {
+    private static final int FEEDBACK_DOCS = 10;
+    private static final int FEEDBACK_TERMS = 20;
+    private static final float LAMBDA = 0.7f;
+    private static final float MIXING_LAMBDA = 0.7f;
+
+    private static final int WARM_UP_ITERATIONS = 5;
+    private static final int ITERATIONS = 20;
+
+    public static void main(String[] args) throws IOException {
+        Analyzer analyzer = new CustomAnalyzer(MyStopWords.stopWords);
+        QueryBuilder queryBuilder = new BinaryQueryBuilder(analyzer, 128);
+
+        IndexReader reader = DirectoryReader.open(FSDirectory.open(FileSystems.getDefault().getPath(PATH_TO_INDEX)));
+        IndexSearcher searcher = new IndexSearcher(reader);
+        searcher.setSimilarity(new BM25Similarity());
+
+        /* Gather the analyzed queries and their feedback documents once */
+        List<String[]> analyzedQueries = new ArrayList<>();
+        List<ScoreDoc[]> feedbackDocs = new ArrayList<>();
+
+        for (TRECQuery trecQuery : BenchmarkSupport.readGroundTruths().keySet()) {
+            Query query = queryBuilder.buildQuery(TARGET_FIELD, trecQuery.getPlainQuery());
+            String[] analyzedQuery = QuerySolver.unParseQuery(query);
+
+            if (analyzedQuery.length == 0)
+                continue;
+
+            analyzedQueries.add(analyzedQuery);
+            feedbackDocs.add(searcher.search(query, FEEDBACK_DOCS).scoreDocs);
+        }
+
+        for (int i = 0; i < WARM_UP_ITERATIONS; ++i) {
+            runMap(analyzer, reader, analyzedQueries, feedbackDocs, null);
+            runSparse(reader, analyzedQueries, feedbackDocs, null);
+        }
+
+        long mapTime = 0;
+        long sparseTime = 0;
+
+        for (int i = 0; i < ITERATIONS; ++i) {
+            long start = System.nanoTime();
+            runMap(analyzer, reader, analyzedQueries, feedbackDocs, null);
+            mapTime += System.nanoTime() - start;
+
+            start = System.nanoTime();
+            runSparse(reader, analyzedQueries, feedbackDocs, null);
+            sparseTime += System.nanoTime() - start;
+        }
+
+        /* Compare the selected terms, query by query */
+        List<Set<String>> mapTerms = new ArrayList<>();
+        List<Set<String>> sparseTerms = new ArrayList<>();
+        runMap(analyzer, reader, analyzedQueries, feedbackDocs, mapTerms);
+        runSparse(reader, analyzedQueries, feedbackDocs, sparseTerms);
+
+        long shared = 0;
+        long total = 0;
+
+        for (int i = 0; i < mapTerms.size(); ++i) {
+            Set<String> intersection = new HashSet<>(mapTerms.get(i));
+            intersection.retainAll(sparseTerms.get(i));
+            shared += intersection.size();
+            total += mapTerms.get(i).size();
+        }
+
+        double perQuery = ITERATIONS * (double) analyzedQueries.size();
+
+        System.out.println(
+                "> " + analyzedQueries.size() + " queries, " + FEEDBACK_DOCS + " feedback docs, " + FEEDBACK_TERMS + " feedback terms" +
+                "\nRLM: " + (mapTime / perQuery / 1_000.0) + " us per query" +
+                "\nSparseRelevanceModel: " + (sparseTime / perQuery / 1_000.0) + " us per query" +
+                "\nSpeedup: " + ((double) mapTime / (double) Math.max(sparseTime, 1L)) +
+                "\nRM3 term overlap: " + shared + " / " + total
+        );
+
+        reader.close();
+    }
+
+    private static void runMap(Analyzer analyzer, IndexReader reader, List<String[]> analyzedQueries, List<ScoreDoc[]> feedbackDocs, List<Set<String>> selectedTerms) throws IOException {
+        for (int i = 0; i < analyzedQueries.size(); ++i) {
+            RLM rlm = new RLM(analyzer, FEEDBACK_DOCS, FEEDBACK_TERMS, LAMBDA, MIXING_LAMBDA, TARGET_FIELD);
+            rlm.setFeedbackStats(feedbackDocs.get(i), reader, analyzedQueries.get(i));
+            Set<String> terms = rlm.RM3(analyzedQueries.get(i)).keySet();
+
+            if (selectedTerms != null)
+                selectedTerms.add(new HashSet<>(terms));
+        }
+    }
+
+    private static void runSparse(IndexReader reader, List<String[]> analyzedQueries, List<ScoreDoc[]> feedbackDocs, List<Set<String>> selectedTerms) throws IOException {
+        for (int i = 0; i < analyzedQueries.size(); ++i) {
+            List<CompactTermVector> feedbackVectors = new ArrayList<>();
+
+            for (ScoreDoc scoreDoc : feedbackDocs.get(i)) {
+                CompactTermVector termVector = CompactTermVector.read(reader, scoreDoc.doc, TARGET_FIELD);
+
+                if (termVector != null)
+                    feedbackVectors.add(termVector);
+            }
+
+            SparseRelevanceModel model = new SparseRelevanceModel(FEEDBACK_DOCS, FEEDBACK_TERMS, LAMBDA, MIXING_LAMBDA);
+            model.setFeedbackStats(feedbackVectors, analyzedQueries.get(i));
+            Set<String> terms = model.RM3(analyzedQueries.get(i)).keySet();
+
+            if (selectedTerms != null)
+                selectedTerms.add(new HashSet<>(terms));
+        }
+    }
+}
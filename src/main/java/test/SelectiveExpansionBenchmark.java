@@ -0,0 +1,54 @@
+package test;
+
+import org.apache.lucene.analysis.Analyzer;
+import org.apache.lucene.search.similarities.BM25Similarity;
+import query.BinaryQueryBuilder;
+import query.QueryBuilder;
+import query.QuerySolver;
+import query.TRECQuery;
+import query.analyzer.CustomAnalyzer;
+import query.analyzer.MyStopWords;
+import query.expansion.prediction.ClarityPredictor;
+import query.expansion.prediction.ExpansionPredictor;
+import query.expansion.prediction.IdfSpreadPredictor;
+import query.expansion.prediction.ScoreDistributionPredictor;
+import query.expansion.rm.RelevanceBasedLanguageModel;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.Set;
+
+import static test.BenchmarkSupport.TARGET_FIELD;
+
+/**
+ * Evaluates the expansion predictors: for each of them, the MAP and R-Prec are compared against always expanding, and
+ * the second pass work saved by the predictor is reported.
+ */
+public class SelectiveExpansionBenchmark {
+    public static void main(String[] args) throws IOException {
+        Analyzer analyzer = new CustomAnalyzer(MyStopWords.stopWords);
+        QueryBuilder queryBuilder = new BinaryQueryBuilder(analyzer, 128);
+        Map<TRECQuery, Set<String>> groundTruths = BenchmarkSupport.readGroundTruths();
+
+        /* null stands for the baseline, which always expands */
+        ExpansionPredictor[] predictors = {
+                null,
+                new IdfSpreadPredictor(0.5),
+                new ScoreDistributionPredictor(0.05),
+                new ClarityPredictor(1.0, 5)
+        };
+
+        for (ExpansionPredictor predictor : predictors) {
+            QuerySolver querySolver = BenchmarkSupport.newSolver(
+                    queryBuilder,
+                    new BM25Similarity(),
+                    new RelevanceBasedLanguageModel(10, 5, TARGET_FIELD, analyzer, queryBuilder, 0.7f, 0.7f, RelevanceBasedLanguageModel.RMType.RM3)
+            );
+            querySolver.setExpansionPredictor(predictor);
+
+            BenchmarkSupport.evaluate(predictor == null ? "Always expand" : predictor.toString(), querySolver, groundTruths);
+
+            System.out.println(querySolver.getExpansionReport());
+        }
+    }
+}
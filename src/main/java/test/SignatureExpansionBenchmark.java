@@ -0,0 +1,63 @@
+package test;
+
+import org.apache.lucene.analysis.Analyzer;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.store.FSDirectory;
+import query.BinaryQueryBuilder;
+import query.QueryBuilder;
+import query.TRECQuery;
+import query.analyzer.CustomAnalyzer;
+import query.analyzer.MyStopWords;
+import query.expansion.SignatureExpander;
+import query.expansion.rm.CollectionStatisticsTable;
+import query.expansion.rm.RelevanceBasedLanguageModel;
+import query.expansion.rocchio.Rocchio;
+import retrieval.IndexCreator;
+
+import java.io.IOException;
+import java.nio.file.FileSystems;
+import java.util.Map;
+import java.util.Set;
+
+import static test.BenchmarkSupport.PATH_TO_INDEX;
+import static test.BenchmarkSupport.TARGET_FIELD;
+
+/**
+ * Compares the expansion from the index-time signatures of the feedback documents against the expansion from their
+ * full term vectors, for RM3 and for Rocchio. The MAP, R-Prec and total time of each are reported. The index must
+ * have been created with signatures (see IndexCreator.setSignatureSize).
+ */
+public class SignatureExpansionBenchmark {
+    /**
+     * The number of terms of the signatures of the index
+     */
+    private static final int SIGNATURE_SIZE = 32;
+
+    public static void main(String[] args) throws IOException {
+        Analyzer analyzer = new CustomAnalyzer(MyStopWords.stopWords);
+        QueryBuilder queryBuilder = new BinaryQueryBuilder(analyzer, 128);
+        Map<TRECQuery, Set<String>> groundTruths = BenchmarkSupport.readGroundTruths();
+
+        CollectionStatisticsTable table = CollectionStatisticsTable.open(FileSystems.getDefault().getPath(IndexCreator.defaultStatisticsTablePath(PATH_TO_INDEX)));
+
+        try (DirectoryReader reader = DirectoryReader.open(FSDirectory.open(FileSystems.getDefault().getPath(PATH_TO_INDEX)))) {
+            if (!table.isCurrent(reader)) {
+                System.err.println("> The statistics table is not current with the index; recreate the index with signatures");
+                return;
+            }
+        }
+
+        BenchmarkSupport.evaluate("RM3, term vectors",
+                new RelevanceBasedLanguageModel(10, 5, TARGET_FIELD, analyzer, queryBuilder, 0.7f, 0.7f, RelevanceBasedLanguageModel.RMType.RM3),
+                queryBuilder, groundTruths);
+        BenchmarkSupport.evaluate("RM3, signatures",
+                new SignatureExpander(SignatureExpander.Mode.RM3, table, IndexCreator.SIGNATURE_FIELD, SIGNATURE_SIZE, 10, 5, 0.7f, 0.3f, TARGET_FIELD, analyzer, queryBuilder),
+                queryBuilder, groundTruths);
+        BenchmarkSupport.evaluate("Rocchio, term vectors",
+                new Rocchio(1.0f, 0.75f, 5, 10, TARGET_FIELD, analyzer, queryBuilder),
+                queryBuilder, groundTruths);
+        BenchmarkSupport.evaluate("Rocchio, signatures",
+                new SignatureExpander(SignatureExpander.Mode.ROCCHIO, table, IndexCreator.SIGNATURE_FIELD, SIGNATURE_SIZE, 10, 5, 1.0f, 0.75f, TARGET_FIELD, analyzer, queryBuilder),
+                queryBuilder, groundTruths);
+    }
+}